@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2020, Мира Странная <rsxrwscjpzdzwpxaujrr@yahoo.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import benchmark.ShadowScene;
+
+import java.util.concurrent.ForkJoinPool;
+
+public class GeneratedShadowScene implements ShadowScene {
+    private final ShadowGeometry geometry = new ShadowGeometry();
+    private final Box movingBox;
+    private float step = 1.0f;
+
+    public GeneratedShadowScene(String layout, int lights, int casters, boolean parallel) {
+        SceneGenerator scene = new SceneGenerator(
+                SceneGenerator.Layout.valueOf(layout),
+                lights,
+                casters,
+                4096.0f,
+                4096.0f,
+                42
+        );
+
+        geometry.setShadowPool(parallel ? ForkJoinPool.commonPool() : null);
+
+        for (SimpleLight light: scene.lights()) {
+            geometry.addLight(light);
+        }
+
+        for (Box box: scene.boxes()) {
+            geometry.addClient(box);
+        }
+
+        geometry.update();
+
+        movingBox = scene.boxes().get(0);
+    }
+
+    @Override
+    public void broadphase() {
+        geometry.invalidate();
+        geometry.refresh();
+        geometry.broadphase();
+    }
+
+    @Override
+    public void occlusion() {
+        geometry.invalidate();
+        geometry.refresh();
+        geometry.broadphase();
+        geometry.occlusion();
+    }
+
+    @Override
+    public void fullUpdate() {
+        geometry.invalidate();
+        geometry.update();
+    }
+
+    @Override
+    public void moveOneCaster() {
+        movingBox.setX(movingBox.x() + step);
+        step = -step;
+
+        geometry.update();
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2020, Мира Странная <rsxrwscjpzdzwpxaujrr@yahoo.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package benchmark;
+
+// JMH не запускает замеры из пакета по умолчанию, а классы сцены лежат именно там.
+// Сцена реализует этот интерфейс в пакете по умолчанию и создаётся по имени класса
+public interface ShadowScene {
+    void broadphase();
+    void occlusion();
+    void fullUpdate();
+    void moveOneCaster();
+
+    static ShadowScene create(String layout, int lights, int casters, boolean parallel) {
+        try {
+            return (ShadowScene) Class.forName("GeneratedShadowScene")
+                    .getConstructor(String.class, int.class, int.class, boolean.class)
+                    .newInstance(layout, lights, casters, parallel);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can not create benchmark scene", e);
+        }
+    }
+}
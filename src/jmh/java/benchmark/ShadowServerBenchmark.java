@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2020, Мира Странная <rsxrwscjpzdzwpxaujrr@yahoo.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Замеры ShadowGeometry.update() без GL-контекста. Стоимость отдельной фазы - разница соседних замеров:
+// broadphase, затем broadphase + occlusion, затем полный пересчёт с проекцией теней
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class ShadowServerBenchmark {
+    @Param({ "100" })
+    public int lights;
+
+    @Param({ "2000" })
+    public int casters;
+
+    @Param({ "UNIFORM", "CLUSTERED", "OVERLAP" })
+    public String layout;
+
+    @Param({ "false", "true" })
+    public boolean parallel;
+
+    private ShadowScene scene;
+
+    @Setup
+    public void setup() {
+        scene = ShadowScene.create(layout, lights, casters, parallel);
+    }
+
+    @Benchmark
+    public void broadphase() {
+        scene.broadphase();
+    }
+
+    @Benchmark
+    public void occlusion() {
+        scene.occlusion();
+    }
+
+    @Benchmark
+    public void fullUpdate() {
+        scene.fullUpdate();
+    }
+
+    // Обычный кадр: двигается один клиент, пересчитываются только источники рядом с ним
+    @Benchmark
+    public void moveOneCaster() {
+        scene.moveOneCaster();
+    }
+}
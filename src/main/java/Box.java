@@ -22,6 +22,8 @@ public class Box implements IShadowClient {
     private float y;
     private float size;
 
+    private final float[] vertices = new float[12];
+
     public Box(float x, float y, float size) {
         this.x = x;
         this.y = y;
@@ -29,15 +31,25 @@ public class Box implements IShadowClient {
     }
 
     @Override
-    public float[] triangles() {
-        return new float[] {
-            x + size, y + size,
-            x, y + size,
-            x, y,
-            x + size, y + size,
-            x, y,
-            x + size, y,
-        };
+    public int vertexCount() {
+        return 6;
+    }
+
+    @Override
+    public void writeVertices(float[] dst, int offset) {
+        dst[offset] = x + size;
+        dst[offset + 1] = y + size;
+        dst[offset + 2] = x;
+        dst[offset + 3] = y + size;
+        dst[offset + 4] = x;
+        dst[offset + 5] = y;
+
+        dst[offset + 6] = x + size;
+        dst[offset + 7] = y + size;
+        dst[offset + 8] = x;
+        dst[offset + 9] = y;
+        dst[offset + 10] = x + size;
+        dst[offset + 11] = y;
     }
 
     @Override
@@ -51,10 +63,7 @@ public class Box implements IShadowClient {
     }
 
     public void draw() {
-        float[] vertices = triangles();
-
-        if (vertices.length % 6 != 0)
-            return;
+        writeVertices(vertices, 0);
 
         glColor3f(0.0f, 0.0f, 0.0f);
 
@@ -83,7 +92,6 @@ public class Box implements IShadowClient {
         this.y = y;
     }
 
-    @Override
     public float size() {
         return size;
     }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2020, Мира Странная <rsxrwscjpzdzwpxaujrr@yahoo.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.util.Arrays;
+
+// Раздаёт участки буфера. Смещение участка не меняется, пока его не освободят,
+// освобождённые участки сливаются с соседними и используются снова
+public class BufferArena {
+    private int capacity;
+    private int used;
+
+    // Свободные участки по возрастанию смещения, соседние всегда слиты
+    private int[] freeOffsets = new int[16];
+    private int[] freeSizes = new int[16];
+    private int freeCount;
+
+    public BufferArena(int capacity) {
+        reset(capacity);
+    }
+
+    // Первый подходящий свободный участок или -1, если его нет и нужно grow()
+    public int allocate(int size) {
+        for (int i = 0; i < freeCount; i++) {
+            if (freeSizes[i] >= size) {
+                int offset = freeOffsets[i];
+
+                freeOffsets[i] += size;
+                freeSizes[i] -= size;
+
+                if (freeSizes[i] == 0)
+                    removeFree(i);
+
+                used += size;
+
+                return offset;
+            }
+        }
+
+        return -1;
+    }
+
+    public void free(int offset, int size) {
+        used -= size;
+
+        int i = 0;
+
+        while (i < freeCount && freeOffsets[i] < offset)
+            i++;
+
+        boolean mergePrevious = i > 0 && freeOffsets[i - 1] + freeSizes[i - 1] == offset;
+        boolean mergeNext = i < freeCount && offset + size == freeOffsets[i];
+
+        if (mergePrevious && mergeNext) {
+            freeSizes[i - 1] += size + freeSizes[i];
+            removeFree(i);
+        } else if (mergePrevious) {
+            freeSizes[i - 1] += size;
+        } else if (mergeNext) {
+            freeOffsets[i] = offset;
+            freeSizes[i] += size;
+        } else {
+            insertFree(i, offset, size);
+        }
+    }
+
+    // Добавляет место в конец, уже выданные участки остаются на месте
+    public void grow(int capacity) {
+        int added = capacity - this.capacity;
+
+        if (freeCount > 0 && freeOffsets[freeCount - 1] + freeSizes[freeCount - 1] == this.capacity) {
+            freeSizes[freeCount - 1] += added;
+        } else {
+            insertFree(freeCount, this.capacity, added);
+        }
+
+        this.capacity = capacity;
+    }
+
+    // Освобождает всё, участки нужно раздать заново
+    public void reset(int capacity) {
+        this.capacity = capacity;
+
+        used = 0;
+        freeCount = 0;
+
+        if (capacity > 0)
+            insertFree(0, 0, capacity);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int used() {
+        return used;
+    }
+
+    private void insertFree(int index, int offset, int size) {
+        if (freeCount == freeOffsets.length) {
+            freeOffsets = Arrays.copyOf(freeOffsets, freeCount * 2);
+            freeSizes = Arrays.copyOf(freeSizes, freeCount * 2);
+        }
+
+        System.arraycopy(freeOffsets, index, freeOffsets, index + 1, freeCount - index);
+        System.arraycopy(freeSizes, index, freeSizes, index + 1, freeCount - index);
+
+        freeOffsets[index] = offset;
+        freeSizes[index] = size;
+        freeCount++;
+    }
+
+    private void removeFree(int index) {
+        System.arraycopy(freeOffsets, index + 1, freeOffsets, index, freeCount - index - 1);
+        System.arraycopy(freeSizes, index + 1, freeSizes, index, freeCount - index - 1);
+
+        freeCount--;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2020, Мира Странная <rsxrwscjpzdzwpxaujrr@yahoo.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.lwjgl.opengl.GL11.*;
+
+public class Circle implements IShadowClient {
+    private float x;
+    private float y;
+    private float radius;
+
+    private static final int drawSegments = 32;
+
+    public Circle(float x, float y, float radius) {
+        this.x = x;
+        this.y = y;
+        this.radius = radius;
+    }
+
+    @Override
+    public Shape shape() {
+        return Shape.CIRCLE;
+    }
+
+    @Override
+    public int vertexCount() {
+        return 1;
+    }
+
+    @Override
+    public void writeVertices(float[] dst, int offset) {
+        dst[offset] = x;
+        dst[offset + 1] = y;
+    }
+
+    public void draw() {
+        glColor3f(0.0f, 0.0f, 0.0f);
+
+        glBegin(GL_TRIANGLE_FAN);
+
+        for (int i = 0; i < drawSegments; i++) {
+            double angle = 2.0 * Math.PI * i / drawSegments;
+
+            glVertex2f(x + radius * (float) Math.cos(angle), y + radius * (float) Math.sin(angle));
+        }
+
+        glEnd();
+    }
+
+    public float x() {
+        return x;
+    }
+
+    public void setX(float x) {
+        this.x = x;
+    }
+
+    public float y() {
+        return y;
+    }
+
+    public void setY(float y) {
+        this.y = y;
+    }
+
+    @Override
+    public float radius() {
+        return radius;
+    }
+
+    public void setRadius(float radius) {
+        this.radius = radius;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2020, Мира Странная <rsxrwscjpzdzwpxaujrr@yahoo.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.lwjgl.opengl.GL11.*;
+
+// Выпуклый многоугольник, вершины задаются относительно (x, y)
+public class ConvexPolygon implements IShadowClient {
+    private float x;
+    private float y;
+    private final float[] outline;
+
+    public ConvexPolygon(float x, float y, float[] outline) {
+        this.x = x;
+        this.y = y;
+        this.outline = outline.clone();
+    }
+
+    // Правильный многоугольник из sides вершин, вписанный в круг радиуса radius
+    public static ConvexPolygon regular(float x, float y, float radius, int sides) {
+        float[] outline = new float[sides * 2];
+
+        for (int i = 0; i < sides; i++) {
+            double angle = 2.0 * Math.PI * i / sides;
+
+            outline[i * 2] = radius * (float) Math.cos(angle);
+            outline[i * 2 + 1] = radius * (float) Math.sin(angle);
+        }
+
+        return new ConvexPolygon(x, y, outline);
+    }
+
+    @Override
+    public Shape shape() {
+        return Shape.CONVEX_POLYGON;
+    }
+
+    @Override
+    public int vertexCount() {
+        return outline.length / 2;
+    }
+
+    @Override
+    public void writeVertices(float[] dst, int offset) {
+        for (int i = 0; i < outline.length; i += 2) {
+            dst[offset + i] = x + outline[i];
+            dst[offset + i + 1] = y + outline[i + 1];
+        }
+    }
+
+    public void draw() {
+        glColor3f(0.0f, 0.0f, 0.0f);
+
+        glBegin(GL_TRIANGLE_FAN);
+
+        // Лицевая сторона против часовой стрелки, иначе многоугольник отсечётся вместе с задними гранями
+        boolean clockwise = area() < 0.0f;
+
+        for (int i = 0; i < outline.length; i += 2) {
+            int v = clockwise ? outline.length - 2 - i : i;
+
+            glVertex2f(x + outline[v], y + outline[v + 1]);
+        }
+
+        glEnd();
+    }
+
+    private float area() {
+        float area = 0.0f;
+
+        for (int i = 0; i < outline.length; i += 2) {
+            int j = (i + 2) % outline.length;
+
+            area += outline[i] * outline[j + 1] - outline[j] * outline[i + 1];
+        }
+
+        return area;
+    }
+
+    public float x() {
+        return x;
+    }
+
+    public void setX(float x) {
+        this.x = x;
+    }
+
+    public float y() {
+        return y;
+    }
+
+    public void setY(float y) {
+        this.y = y;
+    }
+}
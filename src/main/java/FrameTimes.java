@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2020, Мира Странная <rsxrwscjpzdzwpxaujrr@yahoo.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+// Время всех кадров прогона. В отличие от ShadowMetrics ничего не вытесняет, поэтому годится
+// для замеров на тысячи кадров, где важны минимум и редкие выбросы
+public class FrameTimes {
+    private long[] nanos = new long[1024];
+    private int count;
+
+    public void add(long frameNanos) {
+        if (count == nanos.length)
+            nanos = Arrays.copyOf(nanos, count * 2);
+
+        nanos[count++] = frameNanos;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    // Строка с минимумом, средним, медианой, p99 и максимумом в миллисекундах
+    public String summary(String name) {
+        if (count == 0)
+            return String.format("%-8s no frames%n", name);
+
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+
+        double sum = 0.0;
+
+        for (long value: sorted) {
+            sum += value;
+        }
+
+        return String.format("%-8s min %8.3f  avg %8.3f  p50 %8.3f  p99 %8.3f  max %8.3f ms%n",
+                name,
+                sorted[0] / 1e6,
+                sum / count / 1e6,
+                sorted[count / 2] / 1e6,
+                sorted[Math.min(count - 1, (int) (count * 0.99))] / 1e6,
+                sorted[count - 1] / 1e6);
+    }
+}
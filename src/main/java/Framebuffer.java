@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2020, Мира Странная <rsxrwscjpzdzwpxaujrr@yahoo.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL30.*;
+
+// Кадровый буфер с цветовой текстурой RGBA8 и буфером глубины и трафарета.
+// Контекст 2.0, поэтому нужен OpenGL 3.0 или ARB_framebuffer_object, у них одни и те же функции
+public class Framebuffer {
+    private final int id;
+    private final int depthStencil;
+    private final int width;
+    private final int height;
+    private final int ownTexture;
+    private int texture;
+
+    public Framebuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        ownTexture = createTexture(width, height);
+        texture = ownTexture;
+
+        depthStencil = glGenRenderbuffers();
+        glBindRenderbuffer(GL_RENDERBUFFER, depthStencil);
+        glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH24_STENCIL8, width, height);
+        glBindRenderbuffer(GL_RENDERBUFFER, 0);
+
+        id = glGenFramebuffers();
+        glBindFramebuffer(GL_FRAMEBUFFER, id);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, texture, 0);
+        glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_STENCIL_ATTACHMENT, GL_RENDERBUFFER, depthStencil);
+
+        int status = glCheckFramebufferStatus(GL_FRAMEBUFFER);
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+
+        if (status != GL_FRAMEBUFFER_COMPLETE) {
+            delete();
+            throw new IllegalStateException("Framebuffer is incomplete: 0x" + Integer.toHexString(status));
+        }
+    }
+
+    public static boolean supported() {
+        GLCapabilities capabilities = GL.getCapabilities();
+
+        return capabilities.OpenGL30 || capabilities.GL_ARB_framebuffer_object;
+    }
+
+    // Пустая текстура того же формата, что и цветовая, для attachTexture()
+    public static int createTexture(int width, int height) {
+        int texture = glGenTextures();
+
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, (ByteBuffer) null);
+        glBindTexture(GL_TEXTURE_2D, 0);
+
+        return texture;
+    }
+
+    // Дальше рисование идёт в texture, она должна быть создана createTexture() с тем же размером.
+    // Такие текстуры удаляет тот, кто их создал, delete() удаляет только собственную
+    public void attachTexture(int texture) {
+        this.texture = texture;
+
+        glBindFramebuffer(GL_FRAMEBUFFER, id);
+        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, texture, 0);
+    }
+
+    public void bind() {
+        glBindFramebuffer(GL_FRAMEBUFFER, id);
+        glViewport(0, 0, width, height);
+    }
+
+    public static void unbind() {
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    }
+
+    // Кадровый буфер, в который сейчас идёт рисование, 0 - окно
+    public static int current() {
+        return glGetInteger(GL_FRAMEBUFFER_BINDING);
+    }
+
+    // Возвращает рисование в буфер, полученный из current()
+    public static void rebind(int framebuffer) {
+        glBindFramebuffer(GL_FRAMEBUFFER, framebuffer);
+    }
+
+    public int texture() {
+        return texture;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public void delete() {
+        glDeleteFramebuffers(id);
+        glDeleteRenderbuffers(depthStencil);
+        glDeleteTextures(ownTexture);
+    }
+}
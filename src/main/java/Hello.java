@@ -15,11 +15,20 @@
  * along with this program. If not, see <http://www.gnu.org/licenses/>.
  */
 
+import org.lwjgl.BufferUtils;
 import org.lwjgl.glfw.*;
 import org.lwjgl.opengl.*;
 
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
+import javax.imageio.ImageIO;
+import javax.management.JMException;
+
 import static org.lwjgl.glfw.Callbacks.*;
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL11.*;
@@ -29,13 +38,45 @@ public class Hello {
     private long window;
     private final Random random = new Random();
     private ShadowServer shadowServer;
-    private final List<Box> boxes = new ArrayList<>();
+    private final List<Runnable> casterDraws = new ArrayList<>();
+    private IShadowClient.Shape casterShape = IShadowClient.Shape.TRIANGLES;
     private final int windowWidth = 800;
     private final int windowHeight = 600;
+    private final float cameraSpeed = 8.0f;
+
+    // Пишет сцену для SceneReplay, если Hello запущен с --record <файл>
+    private SceneRecorder recorder;
+
+    // Замер с --benchmark вместо обычного запуска: сколько кадров и какую сцену рисовать
+    private boolean benchmark;
+    private int benchmarkFrames = 1000;
+    private int benchmarkLights = 100;
+    private int benchmarkBoxes = 2000;
+    private SceneGenerator.Layout benchmarkLayout = SceneGenerator.Layout.UNIFORM;
+    private long benchmarkSeed = 42;
+    private String benchmarkPng;
+    private int benchmarkBudget = Integer.MAX_VALUE;
+    private ShadowServer.ShadowMode benchmarkMode = ShadowServer.ShadowMode.STENCIL;
+    private boolean benchmarkShaders = true;
+    private boolean benchmarkLightMaps;
+    private int benchmarkGLErrors;
+    private final float benchmarkWorldWidth = 4096.0f;
 
     public void run() {
         init();
-        loop();
+
+        if (benchmark)
+            benchmark();
+        else
+            loop();
+
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
 
         glfwFreeCallbacks(window);
         glfwDestroyWindow(window);
@@ -61,7 +102,7 @@ public class Hello {
             throw new RuntimeException("Failed to create the GLFW window");
 
         glfwMakeContextCurrent(window);
-        glfwSwapInterval(1);
+        glfwSwapInterval(benchmark ? 0 : 1);
 
         glfwSetMouseButtonCallback(window, new GLFWMouseButtonCallback() {
             @Override
@@ -80,23 +121,22 @@ public class Hello {
                                     random.nextFloat() / 10.0f
                             );
 
-                            shadowServer.addLight(new SimpleLight(cursorPos[0], cursorPos[1], 600.0f, color));
+                            addStaticLight(new SimpleLight(cursorPos[0], cursorPos[1], 600.0f, color));
                             break;
 
                         case GLFW_MOUSE_BUTTON_MIDDLE:
                             cursorPos = cursorPos();
 
-                            Box box = new Box(cursorPos[0] - 50.0f / 2.0f, cursorPos[1] - 50.0f / 2.0f, 50.0f);
-
-                            boxes.add(box);
-                            shadowServer.addClient(box);
+                            addCaster(cursorPos[0], cursorPos[1]);
                             break;
                     }
                 }
             }
         });
 
-        glfwShowWindow(window);
+        // Замер рисует в кадровый буфер, окно нужно только ради контекста
+        if (!benchmark)
+            glfwShowWindow(window);
     }
 
     private void loop() {
@@ -104,36 +144,104 @@ public class Hello {
 
         shadowServer = new ShadowServer();
 
+        try {
+            shadowServer.metrics().registerMBean("Hello");
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+
         glfwSetKeyCallback(window, new GLFWKeyCallback() {
             @Override
             public void invoke(long window, int key, int scancode, int action, int mods) {
                 if (key == GLFW_KEY_S && action == GLFW_RELEASE)
                     shadowServer.setShadersEnabled(!shadowServer.shadersEnabled());
+
+                if (key == GLFW_KEY_G && action == GLFW_RELEASE)
+                    shadowServer.setSpatialIndexEnabled(!shadowServer.spatialIndexEnabled());
+
+                if (key == GLFW_KEY_M && action == GLFW_RELEASE)
+                    shadowServer.setShadowMode(shadowServer.shadowMode() == ShadowServer.ShadowMode.STENCIL ?
+                            ShadowServer.ShadowMode.SHADOW_MAP : ShadowServer.ShadowMode.STENCIL);
+
+                if (key == GLFW_KEY_L && action == GLFW_RELEASE)
+                    shadowServer.setLightMapsEnabled(!shadowServer.lightMapsEnabled());
+
+                // Тени только у 16 самых заметных источников, остальные светят без теней
+                if (key == GLFW_KEY_B && action == GLFW_RELEASE)
+                    shadowServer.setShadowedLightBudget(shadowServer.shadowedLightBudget() == 16 ? Integer.MAX_VALUE : 16);
+
+                // Источники ближе 8 пикселей друг к другу светят и отбрасывают тени как один
+                if (key == GLFW_KEY_K && action == GLFW_RELEASE)
+                    shadowServer.setLightClusterTolerance(shadowServer.lightClusterTolerance() > 0.0f ? 0.0f : 8.0f);
+
+                // Форма клиентов, которых ставит средняя кнопка мыши
+                if (key == GLFW_KEY_C && action == GLFW_RELEASE) {
+                    IShadowClient.Shape[] shapes = IShadowClient.Shape.values();
+
+                    casterShape = shapes[(casterShape.ordinal() + 1) % shapes.length];
+                }
+
+                // Включает метрики, а при повторном нажатии печатает сводку по последним кадрам
+                if (key == GLFW_KEY_I && action == GLFW_RELEASE) {
+                    ShadowMetrics metrics = shadowServer.metrics();
+
+                    if (metrics.enabled())
+                        System.out.print(metrics.snapshot());
+
+                    metrics.setEnabled(!metrics.enabled());
+                    metrics.reset();
+                }
             }
         });
 
         Box tempBox = new Box(100.0f, 100.0f, 50.0f);
-        boxes.add(tempBox);
+        casterDraws.add(tempBox::draw);
         shadowServer.addClient(tempBox);
 
-        shadowServer.addLight(new SimpleLight(
+        if (recorder != null)
+            recorder.addClient(tempBox);
+
+        addStaticLight(new SimpleLight(
                 windowWidth / 2.0f,
                 windowHeight - 100.0f,
                 windowWidth,
                 new Color(1.0f, 1.0f, 1.0f, 0.1f)
         ));
 
-        glEnable(GL_BLEND);
-        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
-
-        glEnable(GL_CULL_FACE);
+        initGLState();
 
-        glClearColor(0.15f, 0.15f, 0.15f, 0.0f);
-        glOrtho(0, windowWidth, 0, windowHeight, -1, 1);
+        shadowServer.setView(0.0f, 0.0f, windowWidth, windowHeight);
 
         while (!glfwWindowShouldClose(window)) {
             glClear(GL_COLOR_BUFFER_BIT);
 
+            // Камера двигается стрелками
+            float cameraX = shadowServer.viewX();
+            float cameraY = shadowServer.viewY();
+
+            if (glfwGetKey(window, GLFW_KEY_LEFT) == GLFW_PRESS)
+                cameraX -= cameraSpeed;
+
+            if (glfwGetKey(window, GLFW_KEY_RIGHT) == GLFW_PRESS)
+                cameraX += cameraSpeed;
+
+            if (glfwGetKey(window, GLFW_KEY_DOWN) == GLFW_PRESS)
+                cameraY -= cameraSpeed;
+
+            if (glfwGetKey(window, GLFW_KEY_UP) == GLFW_PRESS)
+                cameraY += cameraSpeed;
+
+            shadowServer.setView(cameraX, cameraY, windowWidth, windowHeight);
+
+            glLoadIdentity();
+            glOrtho(
+                    shadowServer.viewX(),
+                    shadowServer.viewX() + shadowServer.viewWidth(),
+                    shadowServer.viewY(),
+                    shadowServer.viewY() + shadowServer.viewHeight(),
+                    -1, 1
+            );
+
             if (glfwGetMouseButton(window, GLFW_MOUSE_BUTTON_LEFT) == GLFW_PRESS) {
                 int[] cursorPos = cursorPos();
 
@@ -141,11 +249,14 @@ public class Hello {
                 tempBox.setY(cursorPos[1] - tempBox.size() / 2.0f);
             }
 
+            if (recorder != null)
+                recorder.recordFrame(shadowServer);
+
             shadowServer.update();
             shadowServer.draw();
 
-            for (Box box: boxes) {
-                box.draw();
+            for (Runnable casterDraw: casterDraws) {
+                casterDraw.run();
             }
 
             glfwSwapBuffers(window);
@@ -153,18 +264,311 @@ public class Hello {
         }
     }
 
+    private void initGLState() {
+        glEnable(GL_BLEND);
+        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+
+        glEnable(GL_CULL_FACE);
+
+        glClearColor(0.15f, 0.15f, 0.15f, 0.0f);
+    }
+
+    // Рисует сгенерированную сцену в кадровый буфер без vsync и печатает время кадров.
+    // Источники и коробки статические, как в обычном запуске, одна коробка ездит по кругу.
+    // Первые кадры, пока JIT не прогрелся, в статистику не идут
+    private void benchmark() {
+        GL.createCapabilities();
+
+        if (!Framebuffer.supported())
+            throw new IllegalStateException("Benchmark needs OpenGL 3.0 or ARB_framebuffer_object");
+
+        shadowServer = new ShadowServer();
+        shadowServer.metrics().setEnabled(true);
+        shadowServer.setShadowedLightBudget(benchmarkBudget);
+        shadowServer.setShadowMode(benchmarkMode);
+        shadowServer.setShadersEnabled(benchmarkShaders);
+        shadowServer.setLightMapsEnabled(benchmarkLightMaps);
+
+        float worldWidth = benchmarkWorldWidth;
+        float worldHeight = benchmarkWorldWidth * windowHeight / windowWidth;
+
+        SceneGenerator scene = new SceneGenerator(
+                benchmarkLayout,
+                benchmarkLights,
+                benchmarkBoxes,
+                worldWidth,
+                worldHeight,
+                benchmarkSeed
+        );
+
+        for (SimpleLight light: scene.lights()) {
+            shadowServer.addStaticLight(light);
+        }
+
+        for (Box box: scene.boxes()) {
+            casterDraws.add(box::draw);
+            shadowServer.addStaticClient(box);
+        }
+
+        Box movingBox = new Box(worldWidth / 2.0f, worldHeight / 2.0f, 50.0f);
+        casterDraws.add(movingBox::draw);
+        shadowServer.addClient(movingBox);
+
+        shadowServer.setView(0.0f, 0.0f, worldWidth, worldHeight);
+
+        Framebuffer framebuffer = new Framebuffer(windowWidth, windowHeight);
+        framebuffer.bind();
+
+        initGLState();
+
+        FrameTimes updateTimes = new FrameTimes();
+        FrameTimes drawTimes = new FrameTimes();
+        FrameTimes frameTimes = new FrameTimes();
+        int warmup = Math.min(benchmarkFrames / 10, 100);
+
+        for (int frame = -warmup; frame < benchmarkFrames; frame++) {
+            if (frame == 0)
+                shadowServer.metrics().reset();
+
+            double angle = frame * 0.01;
+
+            movingBox.setX(worldWidth / 2.0f + (float) Math.cos(angle) * worldHeight / 4.0f);
+            movingBox.setY(worldHeight / 2.0f + (float) Math.sin(angle) * worldHeight / 4.0f);
+
+            glClear(GL_COLOR_BUFFER_BIT);
+            glLoadIdentity();
+            glOrtho(0.0f, worldWidth, 0.0f, worldHeight, -1, 1);
+
+            long start = System.nanoTime();
+            shadowServer.update();
+            long updated = System.nanoTime();
+
+            shadowServer.draw();
+
+            for (Runnable casterDraw: casterDraws) {
+                casterDraw.run();
+            }
+
+            // Ждём GPU, иначе замерится только постановка команд в очередь
+            glFinish();
+            long drawn = System.nanoTime();
+
+            // Под программным растеризатором (LIBGL_ALWAYS_SOFTWARE=1) это и есть проверка путей рисования
+            for (int error = glGetError(); error != GL_NO_ERROR; error = glGetError()) {
+                if (benchmarkGLErrors++ == 0)
+                    System.err.println("GL error 0x" + Integer.toHexString(error) + " in frame " + frame);
+            }
+
+            // Кадр метрик заканчивает сам draw()
+            if (frame >= 0) {
+                updateTimes.add(updated - start);
+                drawTimes.add(drawn - updated);
+                frameTimes.add(drawn - start);
+            }
+
+            glfwPollEvents();
+        }
+
+        System.out.println(benchmarkFrames + " frames, " + benchmarkLights + " lights, " + benchmarkBoxes +
+                " boxes, " + benchmarkLayout + ", " + benchmarkMode + (benchmarkShaders ? "" : ", no shaders") +
+                (benchmarkLightMaps ? ", light maps" : "") + ", " + glGetString(GL_RENDERER));
+        System.out.println(benchmarkGLErrors + " GL errors");
+        System.out.print(updateTimes.summary("update"));
+        System.out.print(drawTimes.summary("draw"));
+        System.out.print(frameTimes.summary("frame"));
+        System.out.print(shadowServer.metrics().snapshot());
+
+        if (benchmarkPng != null) {
+            try {
+                savePng(framebuffer, benchmarkPng);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        Framebuffer.unbind();
+        framebuffer.delete();
+    }
+
+    // Последний кадр из кадрового буфера, чтобы сравнивать картинку до и после оптимизаций
+    private static void savePng(Framebuffer framebuffer, String path) throws IOException {
+        int width = framebuffer.width();
+        int height = framebuffer.height();
+
+        ByteBuffer pixels = BufferUtils.createByteBuffer(width * height * 4);
+
+        framebuffer.bind();
+        glPixelStorei(GL_PACK_ALIGNMENT, 1);
+        glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, pixels);
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = ((height - 1 - y) * width + x) * 4;
+
+                int r = pixels.get(i) & 0xFF;
+                int g = pixels.get(i + 1) & 0xFF;
+                int b = pixels.get(i + 2) & 0xFF;
+
+                image.setRGB(x, y, r << 16 | g << 8 | b);
+            }
+        }
+
+        ImageIO.write(image, "png", new File(path));
+    }
+
+    private void addStaticLight(ILight light) {
+        shadowServer.addStaticLight(light);
+
+        if (recorder != null)
+            recorder.addStaticLight(light);
+    }
+
+    private void addStaticClient(IShadowClient client) {
+        shadowServer.addStaticClient(client);
+
+        if (recorder != null)
+            recorder.addStaticClient(client);
+    }
+
+    // Клиент выбранной клавишей C формы с центром в (x, y)
+    private void addCaster(float x, float y) {
+        switch (casterShape) {
+            case TRIANGLES:
+                Box box = new Box(x - 50.0f / 2.0f, y - 50.0f / 2.0f, 50.0f);
+
+                casterDraws.add(box::draw);
+                addStaticClient(box);
+                break;
+
+            case CONVEX_POLYGON:
+                ConvexPolygon polygon = ConvexPolygon.regular(x, y, 30.0f, 8);
+
+                casterDraws.add(polygon::draw);
+                addStaticClient(polygon);
+                break;
+
+            case POLYLINE:
+                Polyline wall = new Polyline(new float[] { x - 60.0f, y - 30.0f, x, y + 30.0f, x + 60.0f, y - 30.0f }, false);
+
+                casterDraws.add(wall::draw);
+                addStaticClient(wall);
+                break;
+
+            case CLOSED_POLYLINE:
+                Polyline room = new Polyline(new float[] { x - 40.0f, y - 40.0f, x + 40.0f, y - 40.0f,
+                        x + 40.0f, y + 40.0f, x - 40.0f, y + 40.0f }, true);
+
+                casterDraws.add(room::draw);
+                addStaticClient(room);
+                break;
+
+            case CIRCLE:
+                Circle circle = new Circle(x, y, 25.0f);
+
+                casterDraws.add(circle::draw);
+                addStaticClient(circle);
+                break;
+        }
+    }
+
     private int[] cursorPos() {
         double[] xpos = new double[1];
         double[] ypos = new double[1];
 
         glfwGetCursorPos(window, xpos, ypos);
 
-        ypos[0] = windowHeight - ypos[0];
+        // Переводим из координат окна в мировые
+        xpos[0] = xpos[0] + shadowServer.viewX();
+        ypos[0] = windowHeight - ypos[0] + shadowServer.viewY();
 
         return new int[] { (int) xpos[0], (int) ypos[0] };
     }
 
-    public static void main(String[] args) {
-        new Hello().run();
+    public static void main(String[] args) throws IOException {
+        Hello hello = new Hello();
+
+        // --record <файл>, или --benchmark [--frames N] [--lights N] [--boxes N] [--layout UNIFORM]
+        // [--seed N] [--budget N] [--mode SHADOW_MAP] [--no-shaders] [--light-maps] [--png <файл>]
+        String benchmarkOption = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+
+            // Все ключи, кроме --record и --benchmark, относятся только к замеру
+            if (!args[i].equals("--record") && !args[i].equals("--benchmark"))
+                benchmarkOption = args[i];
+
+            switch (args[i]) {
+                case "--record":
+                    hello.recorder = new SceneRecorder(new FileOutputStream(value));
+                    i++;
+                    break;
+
+                case "--benchmark":
+                    hello.benchmark = true;
+                    break;
+
+                case "--frames":
+                    hello.benchmarkFrames = Integer.parseInt(value);
+                    i++;
+                    break;
+
+                case "--lights":
+                    hello.benchmarkLights = Integer.parseInt(value);
+                    i++;
+                    break;
+
+                case "--boxes":
+                    hello.benchmarkBoxes = Integer.parseInt(value);
+                    i++;
+                    break;
+
+                case "--layout":
+                    hello.benchmarkLayout = SceneGenerator.Layout.valueOf(value);
+                    i++;
+                    break;
+
+                case "--seed":
+                    hello.benchmarkSeed = Long.parseLong(value);
+                    i++;
+                    break;
+
+                case "--budget":
+                    hello.benchmarkBudget = Integer.parseInt(value);
+                    i++;
+                    break;
+
+                case "--mode":
+                    hello.benchmarkMode = ShadowServer.ShadowMode.valueOf(value);
+                    i++;
+                    break;
+
+                case "--no-shaders":
+                    hello.benchmarkShaders = false;
+                    break;
+
+                case "--light-maps":
+                    hello.benchmarkLightMaps = true;
+                    break;
+
+                case "--png":
+                    hello.benchmarkPng = value;
+                    i++;
+                    break;
+
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        if (benchmarkOption != null && !hello.benchmark)
+            throw new IllegalArgumentException(benchmarkOption + " needs --benchmark");
+
+        hello.run();
+
+        if (hello.benchmarkGLErrors > 0)
+            System.exit(1);
     }
 }
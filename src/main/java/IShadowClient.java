@@ -16,11 +16,132 @@
  */
 
 public interface IShadowClient {
-    float[] triangles();
-    float shadowClientX();
-    float shadowClientY();
+    // Как понимать вершины из writeVertices()
+    enum Shape {
+        // Треугольники по три вершины, рёбра между соседними треугольниками тени не дают
+        TRIANGLES,
 
-    default float size() {
-        return 64.0f;
+        // Выпуклый многоугольник, вершины по контуру в любом направлении
+        CONVEX_POLYGON,
+
+        // Ломаная, тень дают обе стороны каждого отрезка
+        POLYLINE,
+
+        // Ломаная, у которой последняя вершина соединена с первой
+        CLOSED_POLYLINE,
+
+        // Круг с центром в единственной вершине и радиусом radius(). Тень даёт хорда между точками,
+        // в которых его касаются лучи из источника
+        CIRCLE
+    }
+
+    // Клиент переопределяет либо triangles(), как раньше, либо vertexCount() и writeVertices().
+    // Методы по умолчанию выражены друг через друга, поэтому хотя бы одно из двух обязательно
+
+    // Количество вершин, на каждую вершину приходится два float. Что это за вершины, задаёт shape()
+    default int vertexCount() {
+        return triangles().length / 2;
+    }
+
+    // Записывает вершины в dst начиная с offset, в dst должно быть место под vertexCount() * 2 float.
+    // По умолчанию берёт их из triangles(), которая каждый раз создаёт массив
+    default void writeVertices(float[] dst, int offset) {
+        float[] triangles = triangles();
+
+        System.arraycopy(triangles, 0, dst, offset, triangles.length);
+    }
+
+    // Старый интерфейс: всегда треугольники, что бы ни возвращал shape(). Многоугольник режется веером,
+    // круг заменяется вписанным 32-угольником, у ломаных площади нет и массив пустой
+    default float[] triangles() {
+        float[] vertices = new float[vertexCount() * 2];
+
+        writeVertices(vertices, 0);
+
+        switch (shape()) {
+            case CONVEX_POLYGON: {
+                int count = Math.max(vertices.length / 2 - 2, 0);
+                float[] triangles = new float[count * 6];
+
+                for (int i = 0; i < count; i++) {
+                    triangles[i * 6] = vertices[0];
+                    triangles[i * 6 + 1] = vertices[1];
+                    triangles[i * 6 + 2] = vertices[i * 2 + 2];
+                    triangles[i * 6 + 3] = vertices[i * 2 + 3];
+                    triangles[i * 6 + 4] = vertices[i * 2 + 4];
+                    triangles[i * 6 + 5] = vertices[i * 2 + 5];
+                }
+
+                return triangles;
+            }
+
+            case CIRCLE: {
+                int segments = 32;
+                float radius = radius();
+                float[] triangles = new float[segments * 6];
+
+                for (int i = 0; i < segments; i++) {
+                    double from = 2.0 * Math.PI * i / segments;
+                    double to = 2.0 * Math.PI * (i + 1) / segments;
+
+                    triangles[i * 6] = vertices[0];
+                    triangles[i * 6 + 1] = vertices[1];
+                    triangles[i * 6 + 2] = vertices[0] + radius * (float) Math.cos(from);
+                    triangles[i * 6 + 3] = vertices[1] + radius * (float) Math.sin(from);
+                    triangles[i * 6 + 4] = vertices[0] + radius * (float) Math.cos(to);
+                    triangles[i * 6 + 5] = vertices[1] + radius * (float) Math.sin(to);
+                }
+
+                return triangles;
+            }
+
+            case POLYLINE:
+            case CLOSED_POLYLINE:
+                return new float[0];
+
+            default:
+                return vertices;
+        }
+    }
+
+    default Shape shape() {
+        return Shape.TRIANGLES;
+    }
+
+    // Только для Shape.CIRCLE
+    default float radius() {
+        return 0.0f;
+    }
+
+    // Движок их больше не читает, границы клиента он считает по вершинам сам.
+    // По умолчанию - центр прямоугольника вокруг вершин
+    default float shadowClientX() {
+        float[] vertices = new float[vertexCount() * 2];
+        writeVertices(vertices, 0);
+
+        float minX = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+
+        for (int i = 0; i < vertices.length; i += 2) {
+            minX = Math.min(minX, vertices[i]);
+            maxX = Math.max(maxX, vertices[i]);
+        }
+
+        return vertices.length > 0 ? (minX + maxX) / 2.0f : 0.0f;
+    }
+
+    default float shadowClientY() {
+        float[] vertices = new float[vertexCount() * 2];
+        writeVertices(vertices, 0);
+
+        float minY = Float.POSITIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+
+        for (int i = 1; i < vertices.length; i += 2) {
+            minY = Math.min(minY, vertices[i]);
+            maxY = Math.max(maxY, vertices[i]);
+        }
+
+        return vertices.length > 0 ? (minY + maxY) / 2.0f : 0.0f;
     }
 }
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2020, Мира Странная <rsxrwscjpzdzwpxaujrr@yahoo.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// Собирает источники, чьи положения и maxDistance() различаются меньше чем на tolerance,
+// в один Cluster. В ShadowGeometry попадают только кластеры, поэтому тени считаются
+// и рисуются один раз на группу. Статические источники собираются только со статическими
+public class LightClusters {
+    // Источник из нескольких: свет в среднем положении, взвешенном по яркости, с суммой цветов.
+    // Цвет передаётся в GL без шейдерного множителя, поэтому сумма больше 1 обрежется
+    public static class Cluster implements ILight {
+        private final List<ILight> members = new ArrayList<>();
+        private final boolean staticLight;
+        private final Color color = new Color(0.0f, 0.0f, 0.0f, 1.0f);
+
+        private float x;
+        private float y;
+        private float maxDistance;
+
+        // Средний maxDistance() участников, с ним сравнивается новый источник
+        private float range;
+
+        private Cluster(boolean staticLight) {
+            this.staticLight = staticLight;
+        }
+
+        @Override
+        public float x() {
+            return x;
+        }
+
+        @Override
+        public float y() {
+            return y;
+        }
+
+        @Override
+        public float maxDistance() {
+            return maxDistance;
+        }
+
+        @Override
+        public Color color() {
+            return color;
+        }
+
+        public List<ILight> members() {
+            return members;
+        }
+
+        public boolean staticLight() {
+            return staticLight;
+        }
+
+        private void refresh() {
+            float weightSum = 0.0f;
+            float xSum = 0.0f;
+            float ySum = 0.0f;
+            float rangeSum = 0.0f;
+            float r = 0.0f;
+            float g = 0.0f;
+            float b = 0.0f;
+
+            for (int i = 0; i < members.size(); i++) {
+                ILight light = members.get(i);
+                Color lightColor = light.color();
+
+                // Тусклые источники тоже немного сдвигают центр, иначе у чёрных кластеров его нет
+                float weight = Math.max(lightColor.r, Math.max(lightColor.g, lightColor.b)) * lightColor.a + 1e-6f;
+
+                weightSum += weight;
+                xSum += light.x() * weight;
+                ySum += light.y() * weight;
+                rangeSum += light.maxDistance();
+
+                r += lightColor.r * lightColor.a;
+                g += lightColor.g * lightColor.a;
+                b += lightColor.b * lightColor.a;
+            }
+
+            x = xSum / weightSum;
+            y = ySum / weightSum;
+            range = rangeSum / members.size();
+
+            // Свет любого участника должен остаться внутри кластера
+            float reach = 0.0f;
+
+            for (int i = 0; i < members.size(); i++) {
+                ILight light = members.get(i);
+
+                float xDelta = light.x() - x;
+                float yDelta = light.y() - y;
+
+                reach = Math.max(reach, light.maxDistance() + (float) Math.sqrt(xDelta * xDelta + yDelta * yDelta));
+            }
+
+            maxDistance = reach;
+
+            color.r = r;
+            color.g = g;
+            color.b = b;
+            color.a = 1.0f;
+        }
+    }
+
+    private static class Member {
+        Cluster cluster;
+        float x;
+        float y;
+        float maxDistance;
+    }
+
+    private final ShadowGeometry geometry;
+    private final Consumer<ILight> removed;
+    private final float tolerance;
+
+    private final Map<ILight, Member> members = new IdentityHashMap<>();
+    private final List<ILight> lights = new ArrayList<>();
+    private final List<Cluster> clusters = new ArrayList<>();
+    private final SpatialGrid<Cluster> grid;
+    private final List<Cluster> candidates = new ArrayList<>();
+
+    // removed получает кластеры, убранные из geometry, чтобы освободить их ресурсы
+    public LightClusters(ShadowGeometry geometry, float tolerance, Consumer<ILight> removed) {
+        this.geometry = geometry;
+        this.tolerance = tolerance;
+        this.removed = removed;
+
+        grid = new SpatialGrid<>(Math.max(tolerance * 4.0f, 16.0f));
+    }
+
+    public void add(ILight light, boolean staticLight) {
+        Member member = new Member();
+
+        members.put(light, member);
+        lights.add(light);
+
+        assign(light, member, staticLight);
+    }
+
+    public void remove(ILight light) {
+        Member member = members.remove(light);
+
+        if (member == null)
+            return;
+
+        lights.remove(light);
+        leave(light, member);
+    }
+
+    // Переносит сдвинувшиеся источники в подходящие кластеры и пересчитывает изменившиеся кластеры.
+    // Вызывается перед ShadowGeometry.update()
+    public void update() {
+        for (int l = 0; l < lights.size(); l++) {
+            ILight light = lights.get(l);
+            Member member = members.get(light);
+
+            if (light.x() == member.x && light.y() == member.y && light.maxDistance() == member.maxDistance)
+                continue;
+
+            Cluster cluster = member.cluster;
+
+            member.x = light.x();
+            member.y = light.y();
+            member.maxDistance = light.maxDistance();
+
+            if (!fits(cluster, light)) {
+                leave(light, member);
+                assign(light, member, cluster.staticLight);
+            }
+        }
+
+        // Цвет участника тоже мог поменяться, поэтому пересчитываются все кластеры.
+        // Если ничего не поменялось, положение останется тем же и geometry ничего не пересчитает
+        for (int c = 0; c < clusters.size(); c++) {
+            Cluster cluster = clusters.get(c);
+
+            refresh(cluster);
+        }
+    }
+
+    // Убирает все кластеры из geometry, источники остаются в lights()
+    public void clear() {
+        for (int c = 0; c < clusters.size(); c++) {
+            Cluster cluster = clusters.get(c);
+
+            geometry.removeLight(cluster);
+            removed.accept(cluster);
+        }
+
+        clusters.clear();
+        grid.clear();
+    }
+
+    public List<ILight> lights() {
+        return lights;
+    }
+
+    public boolean lightStatic(ILight light) {
+        Member member = members.get(light);
+
+        return member != null && member.cluster.staticLight;
+    }
+
+    public List<Cluster> clusters() {
+        return clusters;
+    }
+
+    public float tolerance() {
+        return tolerance;
+    }
+
+    private boolean fits(Cluster cluster, ILight light) {
+        float xDelta = light.x() - cluster.x;
+        float yDelta = light.y() - cluster.y;
+
+        return xDelta * xDelta + yDelta * yDelta <= tolerance * tolerance &&
+                Math.abs(light.maxDistance() - cluster.range) <= tolerance;
+    }
+
+    private void assign(ILight light, Member member, boolean staticLight) {
+        member.x = light.x();
+        member.y = light.y();
+        member.maxDistance = light.maxDistance();
+
+        candidates.clear();
+        grid.query(light.x() - tolerance, light.y() - tolerance, light.x() + tolerance, light.y() + tolerance, candidates);
+
+        Cluster cluster = null;
+
+        for (int c = 0; c < candidates.size() && cluster == null; c++) {
+            Cluster candidate = candidates.get(c);
+
+            if (candidate.staticLight == staticLight && fits(candidate, light))
+                cluster = candidate;
+        }
+
+        if (cluster == null) {
+            cluster = new Cluster(staticLight);
+            cluster.members.add(light);
+            refresh(cluster);
+
+            clusters.add(cluster);
+
+            if (staticLight)
+                geometry.addStaticLight(cluster);
+            else
+                geometry.addLight(cluster);
+        } else {
+            cluster.members.add(light);
+        }
+
+        member.cluster = cluster;
+    }
+
+    private void leave(ILight light, Member member) {
+        Cluster cluster = member.cluster;
+
+        cluster.members.remove(light);
+        member.cluster = null;
+
+        if (cluster.members.isEmpty()) {
+            clusters.remove(cluster);
+            grid.remove(cluster);
+
+            geometry.removeLight(cluster);
+            removed.accept(cluster);
+        }
+    }
+
+    private void refresh(Cluster cluster) {
+        cluster.refresh();
+
+        grid.update(cluster, cluster.x, cluster.y, cluster.x, cluster.y);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2020, Мира Странная <rsxrwscjpzdzwpxaujrr@yahoo.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.lwjgl.opengl.GL11.*;
+
+// Текстуры со светом статических источников, уже с тенями. Размер карты - степень двойки, карты
+// одного размера рисуются через общий Framebuffer. Когда карты не помещаются в бюджет, вытесняются
+// давно не использованные, а из использованных в этом кадре - занимающие меньше экрана
+public class LightMapCache {
+    public static class Entry {
+        private final int texture;
+        private final int resolution;
+
+        // Для какой версии теней, какого цвета и размера квадрата нарисована карта
+        long shadowsVersion = -1;
+        float r;
+        float g;
+        float b;
+        float extent;
+
+        long lastUsed;
+        float coverage;
+
+        private Entry(int texture, int resolution) {
+            this.texture = texture;
+            this.resolution = resolution;
+        }
+
+        public int texture() {
+            return texture;
+        }
+
+        public int resolution() {
+            return resolution;
+        }
+
+        private long bytes() {
+            return (long) resolution * resolution * 4;
+        }
+
+        public boolean valid(long shadowsVersion, Color color, float extent) {
+            return this.shadowsVersion == shadowsVersion && r == color.r * color.a &&
+                    g == color.g * color.a && b == color.b * color.a && this.extent == extent;
+        }
+
+        public void validate(long shadowsVersion, Color color, float extent) {
+            this.shadowsVersion = shadowsVersion;
+            this.extent = extent;
+            r = color.r * color.a;
+            g = color.g * color.a;
+            b = color.b * color.a;
+        }
+    }
+
+    private final Map<ILight, Entry> entries = new HashMap<>();
+    private final int minResolution;
+    private int maxResolution;
+    private long budget;
+    private long usedBytes;
+    private final Map<Integer, Framebuffer> framebuffers = new HashMap<>();
+
+    public LightMapCache(int minResolution, int maxResolution, long budget) {
+        this.minResolution = minResolution;
+        this.maxResolution = maxResolution;
+        this.budget = budget;
+    }
+
+    // Размер карты, у которой на пиксель экрана приходится не меньше текселя, или 0,
+    // если такая карта больше максимальной
+    public int resolutionFor(float pixels) {
+        int resolution = minResolution;
+
+        while (resolution < pixels) {
+            if (resolution >= maxResolution)
+                return 0;
+
+            resolution *= 2;
+        }
+
+        return resolution;
+    }
+
+    // Карта источника размером resolution для кадра frame или null, если она не помещается в бюджет.
+    // Новая карта невалидна, её нужно нарисовать
+    public Entry acquire(ILight light, long frame, float coverage, int resolution) {
+        Entry entry = entries.get(light);
+
+        // После смены масштаба карта старого размера уже не годится
+        if (entry != null && entry.resolution != resolution) {
+            remove(light);
+            entry = null;
+        }
+
+        if (entry == null) {
+            long bytes = (long) resolution * resolution * 4;
+
+            if (!evictFor(bytes, frame, coverage))
+                return null;
+
+            entry = new Entry(Framebuffer.createTexture(resolution, resolution), resolution);
+            entries.put(light, entry);
+            usedBytes += bytes;
+        }
+
+        entry.lastUsed = frame;
+        entry.coverage = coverage;
+
+        return entry;
+    }
+
+    private boolean evictFor(long bytes, long frame, float coverage) {
+        while (usedBytes + bytes > budget) {
+            ILight victim = null;
+            Entry victimEntry = null;
+
+            for (Map.Entry<ILight, Entry> candidate: entries.entrySet()) {
+                Entry entry = candidate.getValue();
+
+                if (victimEntry == null || entry.lastUsed < victimEntry.lastUsed ||
+                        (entry.lastUsed == victimEntry.lastUsed && entry.coverage < victimEntry.coverage)) {
+                    victim = candidate.getKey();
+                    victimEntry = entry;
+                }
+            }
+
+            // Все карты нужны в этом кадре и закрывают экран не меньше новой
+            if (victimEntry == null || (victimEntry.lastUsed == frame && victimEntry.coverage >= coverage))
+                return false;
+
+            remove(victim);
+        }
+
+        return true;
+    }
+
+    public void remove(ILight light) {
+        Entry entry = entries.remove(light);
+
+        if (entry != null) {
+            glDeleteTextures(entry.texture);
+            usedBytes -= entry.bytes();
+        }
+    }
+
+    // Все карты будут перерисованы
+    public void invalidate() {
+        for (Entry entry: entries.values()) {
+            entry.shadowsVersion = -1;
+        }
+    }
+
+    public void clear() {
+        for (Entry entry: entries.values()) {
+            glDeleteTextures(entry.texture);
+        }
+
+        entries.clear();
+        usedBytes = 0;
+
+        for (Framebuffer framebuffer: framebuffers.values()) {
+            framebuffer.delete();
+        }
+
+        framebuffers.clear();
+    }
+
+    public Framebuffer framebuffer(int resolution) {
+        return framebuffers.computeIfAbsent(resolution, size -> new Framebuffer(size, size));
+    }
+
+    public int maxResolution() {
+        return maxResolution;
+    }
+
+    // Не больше GL_MAX_TEXTURE_SIZE
+    public void setMaxResolution(int maxResolution) {
+        this.maxResolution = maxResolution;
+    }
+
+    public long budget() {
+        return budget;
+    }
+
+    // Лишние карты вытесняются при следующих acquire()
+    public void setBudget(long budget) {
+        this.budget = budget;
+    }
+
+    public long usedBytes() {
+        return usedBytes;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2020, Мира Странная <rsxrwscjpzdzwpxaujrr@yahoo.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import static org.lwjgl.opengl.GL11.*;
+
+// Стены уровня: ломаная без толщины, тень падает по обе стороны от неё
+public class Polyline implements IShadowClient {
+    private final float[] points;
+    private final boolean closed;
+
+    public Polyline(float[] points, boolean closed) {
+        this.points = points.clone();
+        this.closed = closed;
+    }
+
+    @Override
+    public Shape shape() {
+        return closed ? Shape.CLOSED_POLYLINE : Shape.POLYLINE;
+    }
+
+    @Override
+    public int vertexCount() {
+        return points.length / 2;
+    }
+
+    @Override
+    public void writeVertices(float[] dst, int offset) {
+        System.arraycopy(points, 0, dst, offset, points.length);
+    }
+
+    public void draw() {
+        glColor3f(0.0f, 0.0f, 0.0f);
+
+        glBegin(closed ? GL_LINE_LOOP : GL_LINE_STRIP);
+
+        for (int i = 0; i < points.length; i += 2) {
+            glVertex2f(points[i], points[i + 1]);
+        }
+
+        glEnd();
+    }
+}
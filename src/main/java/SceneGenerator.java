@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2020, Мира Странная <rsxrwscjpzdzwpxaujrr@yahoo.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Случайная сцена из SimpleLight и Box для замеров производительности
+public class SceneGenerator {
+    public enum Layout {
+        // Источники и клиенты равномерно по всей сцене
+        UNIFORM,
+        // Клиенты и источники собраны в несколько плотных групп
+        CLUSTERED,
+        // Всё в одном месте, каждый источник видит каждого клиента
+        OVERLAP
+    }
+
+    private final List<SimpleLight> lights = new ArrayList<>();
+    private final List<Box> boxes = new ArrayList<>();
+    private final Random random;
+    private final float width;
+    private final float height;
+
+    private final float[] clusters;
+
+    public SceneGenerator(Layout layout, int lightCount, int boxCount, float width, float height, long seed) {
+        this.random = new Random(seed);
+        this.width = width;
+        this.height = height;
+
+        int clusterCount = Math.max(1, (lightCount + boxCount) / 500);
+
+        clusters = new float[clusterCount * 2];
+
+        for (int i = 0; i < clusters.length; i += 2) {
+            clusters[i] = random.nextFloat() * width;
+            clusters[i + 1] = random.nextFloat() * height;
+        }
+
+        for (int i = 0; i < lightCount; i++) {
+            float[] pos = position(layout);
+
+            Color color = new Color(
+                    0.75f + (random.nextFloat() - 0.5f) / 2.0f,
+                    0.75f + (random.nextFloat() - 0.5f) / 2.0f,
+                    0.75f + (random.nextFloat() - 0.5f) / 2.0f,
+                    random.nextFloat() / 10.0f
+            );
+
+            lights.add(new SimpleLight(pos[0], pos[1], 600.0f, color));
+        }
+
+        for (int i = 0; i < boxCount; i++) {
+            float[] pos = position(layout);
+            float size = 10.0f + random.nextFloat() * 40.0f;
+
+            boxes.add(new Box(pos[0] - size / 2.0f, pos[1] - size / 2.0f, size));
+        }
+    }
+
+    private float[] position(Layout layout) {
+        switch (layout) {
+            case CLUSTERED:
+                int cluster = random.nextInt(clusters.length / 2) * 2;
+                float spread = Math.min(width, height) / 20.0f;
+
+                return new float[] {
+                        clusters[cluster] + (float) random.nextGaussian() * spread,
+                        clusters[cluster + 1] + (float) random.nextGaussian() * spread
+                };
+
+            case OVERLAP:
+                return new float[] {
+                        width / 2.0f + (random.nextFloat() - 0.5f) * 400.0f,
+                        height / 2.0f + (random.nextFloat() - 0.5f) * 400.0f
+                };
+
+            default:
+                return new float[] { random.nextFloat() * width, random.nextFloat() * height };
+        }
+    }
+
+    public List<SimpleLight> lights() {
+        return lights;
+    }
+
+    public List<Box> boxes() {
+        return boxes;
+    }
+}
@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2020, Мира Странная <rsxrwscjpzdzwpxaujrr@yahoo.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+// Пишет изменения сцены и настроек ShadowServer по кадрам, чтобы SceneReplay мог повторить их в точности.
+// Изменения динамических клиентов, источников, области видимости и настроек находятся сравнением
+// с прошлым кадром в recordFrame(), добавление и удаление нужно сообщать самому
+public class SceneRecorder implements Closeable {
+    static final int MAGIC = 0x53485243;
+    // Во второй версии добавились события настроек после SETTINGS, в третьей - признак области видимости
+    // в VIEW. Старые версии можно читать
+    static final int VERSION = 3;
+
+    static final int LIGHT_ADD = 1;
+    static final int LIGHT_MOVE = 2;
+    static final int LIGHT_REMOVE = 3;
+    static final int CLIENT_ADD = 4;
+    static final int CLIENT_CHANGE = 5;
+    static final int CLIENT_REMOVE = 6;
+    static final int VIEW = 7;
+    static final int SETTINGS = 8;
+    static final int FRAME = 9;
+    static final int SHADOW_BUDGET = 10;
+    static final int CLUSTER_TOLERANCE = 11;
+    static final int LIGHT_THRESHOLD = 12;
+    static final int LIGHT_COLOR = 13;
+
+    private final DataOutputStream out;
+
+    private final Map<ILight, RecordedLight> lights = new IdentityHashMap<>();
+    private final Map<IShadowClient, RecordedClient> clients = new IdentityHashMap<>();
+    private final List<RecordedLight> lightList = new ArrayList<>();
+    private final List<RecordedClient> dynamicClients = new ArrayList<>();
+    private int nextId;
+
+    private float[] vertices = new float[12];
+    private final float[] view = new float[4];
+    private int settings = -1;
+    private int shadowBudget = -1;
+    private float clusterTolerance = Float.NaN;
+    private float lightThreshold = Float.NaN;
+    private boolean viewRecorded;
+    private boolean viewEnabled;
+
+    private static class RecordedLight {
+        final ILight light;
+        final int id;
+        float x;
+        float y;
+        float maxDistance;
+        final float[] color = new float[4];
+
+        RecordedLight(ILight light, int id) {
+            this.light = light;
+            this.id = id;
+        }
+    }
+
+    private static class RecordedClient {
+        final IShadowClient client;
+        final int id;
+        final boolean staticClient;
+        float[] vertices = new float[0];
+        int length;
+        IShadowClient.Shape shape;
+        float radius;
+
+        RecordedClient(IShadowClient client, int id, boolean staticClient) {
+            this.client = client;
+            this.id = id;
+            this.staticClient = staticClient;
+        }
+    }
+
+    // Запись сжимается gzip, кадры без изменений занимают один байт и почти ничего не стоят
+    public SceneRecorder(OutputStream out) {
+        try {
+            this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(out)));
+            this.out.writeInt(MAGIC);
+            this.out.writeShort(VERSION);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void addLight(ILight light) {
+        addLight(light, false);
+    }
+
+    public void addStaticLight(ILight light) {
+        addLight(light, true);
+    }
+
+    private void addLight(ILight light, boolean staticLight) {
+        RecordedLight recorded = new RecordedLight(light, nextId++);
+
+        lights.put(light, recorded);
+        lightList.add(recorded);
+
+        recorded.x = light.x();
+        recorded.y = light.y();
+        recorded.maxDistance = light.maxDistance();
+
+        Color color = light.color();
+        colorChanged(recorded, color);
+
+        try {
+            out.writeByte(LIGHT_ADD);
+            out.writeInt(recorded.id);
+            out.writeBoolean(staticLight);
+            out.writeFloat(recorded.x);
+            out.writeFloat(recorded.y);
+            out.writeFloat(recorded.maxDistance);
+            out.writeFloat(color.r);
+            out.writeFloat(color.g);
+            out.writeFloat(color.b);
+            out.writeFloat(color.a);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void removeLight(ILight light) {
+        RecordedLight recorded = lights.remove(light);
+
+        if (recorded == null)
+            return;
+
+        lightList.remove(recorded);
+
+        write(LIGHT_REMOVE, recorded.id);
+    }
+
+    public void addClient(IShadowClient client) {
+        addClient(client, false);
+    }
+
+    public void addStaticClient(IShadowClient client) {
+        addClient(client, true);
+    }
+
+    private void addClient(IShadowClient client, boolean staticClient) {
+        RecordedClient recorded = new RecordedClient(client, nextId++, staticClient);
+
+        clients.put(client, recorded);
+
+        if (!staticClient)
+            dynamicClients.add(recorded);
+
+        try {
+            out.writeByte(CLIENT_ADD);
+            out.writeInt(recorded.id);
+            out.writeBoolean(staticClient);
+            writeGeometry(recorded);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Статический клиент записывается заново только здесь, как и в ShadowServer
+    public void refreshStaticClient(IShadowClient client) {
+        RecordedClient recorded = clients.get(client);
+
+        if (recorded == null)
+            return;
+
+        try {
+            out.writeByte(CLIENT_CHANGE);
+            out.writeInt(recorded.id);
+            writeGeometry(recorded);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void removeClient(IShadowClient client) {
+        RecordedClient recorded = clients.remove(client);
+
+        if (recorded == null)
+            return;
+
+        if (!recorded.staticClient)
+            dynamicClients.remove(recorded);
+
+        write(CLIENT_REMOVE, recorded.id);
+    }
+
+    // Вызывается перед server.update(): дописывает всё, что поменялось с прошлого кадра, и конец кадра
+    public void recordFrame(ShadowServer server) {
+        try {
+            int currentSettings = (server.shadersEnabled() ? 1 : 0) |
+                    (server.spatialIndexEnabled() ? 2 : 0) |
+                    (server.lightMapsEnabled() ? 4 : 0) |
+                    server.shadowMode().ordinal() << 3;
+
+            if (currentSettings != settings) {
+                settings = currentSettings;
+
+                out.writeByte(SETTINGS);
+                out.writeInt(settings);
+            }
+
+            if (server.shadowedLightBudget() != shadowBudget) {
+                shadowBudget = server.shadowedLightBudget();
+
+                out.writeByte(SHADOW_BUDGET);
+                out.writeInt(shadowBudget);
+            }
+
+            if (server.lightClusterTolerance() != clusterTolerance) {
+                clusterTolerance = server.lightClusterTolerance();
+
+                out.writeByte(CLUSTER_TOLERANCE);
+                out.writeFloat(clusterTolerance);
+            }
+
+            if (server.lightThreshold() != lightThreshold) {
+                lightThreshold = server.lightThreshold();
+
+                out.writeByte(LIGHT_THRESHOLD);
+                out.writeFloat(lightThreshold);
+            }
+
+            // Без области видимости её координаты ничего не значат, пишется только признак
+            if (!viewRecorded || viewEnabled != server.viewEnabled() || (viewEnabled &&
+                    (view[0] != server.viewX() || view[1] != server.viewY() ||
+                    view[2] != server.viewWidth() || view[3] != server.viewHeight()))) {
+                viewRecorded = true;
+                viewEnabled = server.viewEnabled();
+                view[0] = server.viewX();
+                view[1] = server.viewY();
+                view[2] = server.viewWidth();
+                view[3] = server.viewHeight();
+
+                out.writeByte(VIEW);
+                out.writeBoolean(viewEnabled);
+
+                if (viewEnabled) {
+                    for (float value: view) {
+                        out.writeFloat(value);
+                    }
+                }
+            }
+
+            for (int l = 0; l < lightList.size(); l++) {
+                RecordedLight recorded = lightList.get(l);
+                ILight light = recorded.light;
+
+                if (light.x() != recorded.x || light.y() != recorded.y || light.maxDistance() != recorded.maxDistance) {
+                    recorded.x = light.x();
+                    recorded.y = light.y();
+                    recorded.maxDistance = light.maxDistance();
+
+                    out.writeByte(LIGHT_MOVE);
+                    out.writeInt(recorded.id);
+                    out.writeFloat(recorded.x);
+                    out.writeFloat(recorded.y);
+                    out.writeFloat(recorded.maxDistance);
+                }
+
+                // Цвет влияет на радиус света, важность источника и кластеры
+                if (colorChanged(recorded, light.color())) {
+                    out.writeByte(LIGHT_COLOR);
+                    out.writeInt(recorded.id);
+
+                    for (float value: recorded.color) {
+                        out.writeFloat(value);
+                    }
+                }
+            }
+
+            for (int c = 0; c < dynamicClients.size(); c++) {
+                RecordedClient recorded = dynamicClients.get(c);
+
+                if (geometryChanged(recorded)) {
+                    out.writeByte(CLIENT_CHANGE);
+                    out.writeInt(recorded.id);
+                    writeGeometry(recorded);
+                }
+            }
+
+            out.writeByte(FRAME);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Запоминает цвет, true если он отличается от записанного
+    private static boolean colorChanged(RecordedLight recorded, Color color) {
+        float[] recordedColor = recorded.color;
+
+        if (recordedColor[0] == color.r && recordedColor[1] == color.g &&
+                recordedColor[2] == color.b && recordedColor[3] == color.a)
+            return false;
+
+        recordedColor[0] = color.r;
+        recordedColor[1] = color.g;
+        recordedColor[2] = color.b;
+        recordedColor[3] = color.a;
+
+        return true;
+    }
+
+    private boolean geometryChanged(RecordedClient recorded) {
+        IShadowClient client = recorded.client;
+        int length = client.vertexCount() * 2;
+
+        if (length != recorded.length || client.shape() != recorded.shape || client.radius() != recorded.radius)
+            return true;
+
+        if (vertices.length < length)
+            vertices = new float[length];
+
+        client.writeVertices(vertices, 0);
+
+        for (int i = 0; i < length; i++) {
+            if (vertices[i] != recorded.vertices[i])
+                return true;
+        }
+
+        return false;
+    }
+
+    private void writeGeometry(RecordedClient recorded) throws IOException {
+        IShadowClient client = recorded.client;
+        int length = client.vertexCount() * 2;
+
+        if (recorded.vertices.length < length)
+            recorded.vertices = new float[length];
+
+        client.writeVertices(recorded.vertices, 0);
+
+        recorded.length = length;
+        recorded.shape = client.shape();
+        recorded.radius = client.radius();
+
+        out.writeByte(recorded.shape.ordinal());
+        out.writeFloat(recorded.radius);
+        out.writeInt(length / 2);
+
+        for (int i = 0; i < length; i++) {
+            out.writeFloat(recorded.vertices[i]);
+        }
+    }
+
+    private void write(int event, int id) {
+        try {
+            out.writeByte(event);
+            out.writeInt(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2020, Мира Странная <rsxrwscjpzdzwpxaujrr@yahoo.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.lwjgl.opengl.GL;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.lwjgl.glfw.GLFW.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.system.MemoryUtil.*;
+
+// Повторяет записанную SceneRecorder сцену на полной скорости и печатает время кадров.
+// Без --render считается только геометрия, с ним тени рисуются в скрытое окно
+public class SceneReplay {
+    private final DataInputStream in;
+    private final ShadowServer server;
+    private final int version;
+
+    private final Map<Integer, SimpleLight> lights = new HashMap<>();
+    private final Map<Integer, ReplayClient> clients = new HashMap<>();
+
+    // Клиент любой формы с вершинами из записи
+    private static class ReplayClient implements IShadowClient {
+        Shape shape;
+        float radius;
+        float[] vertices;
+
+        @Override
+        public Shape shape() {
+            return shape;
+        }
+
+        @Override
+        public float radius() {
+            return radius;
+        }
+
+        @Override
+        public int vertexCount() {
+            return vertices.length / 2;
+        }
+
+        @Override
+        public void writeVertices(float[] dst, int offset) {
+            System.arraycopy(vertices, 0, dst, offset, vertices.length);
+        }
+    }
+
+    public SceneReplay(InputStream in, ShadowServer server) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+        this.server = server;
+
+        if (this.in.readInt() != SceneRecorder.MAGIC)
+            throw new IOException("Not a scene recording");
+
+        version = this.in.readUnsignedShort();
+
+        if (version < 1 || version > SceneRecorder.VERSION)
+            throw new IOException("Unsupported scene recording version " + version);
+    }
+
+    // Применяет изменения одного кадра, false если запись кончилась
+    public boolean nextFrame() throws IOException {
+        while (true) {
+            int event = in.read();
+
+            if (event < 0)
+                return false;
+
+            switch (event) {
+                case SceneRecorder.LIGHT_ADD: {
+                    int id = in.readInt();
+                    boolean staticLight = in.readBoolean();
+                    float x = in.readFloat();
+                    float y = in.readFloat();
+                    float maxDistance = in.readFloat();
+                    Color color = new Color(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
+
+                    SimpleLight light = new SimpleLight(x, y, maxDistance, color);
+                    lights.put(id, light);
+
+                    if (staticLight)
+                        server.addStaticLight(light);
+                    else
+                        server.addLight(light);
+                    break;
+                }
+
+                case SceneRecorder.LIGHT_MOVE: {
+                    SimpleLight light = lights.get(in.readInt());
+
+                    light.setX(in.readFloat());
+                    light.setY(in.readFloat());
+                    light.setMaxDistance(in.readFloat());
+                    break;
+                }
+
+                case SceneRecorder.LIGHT_COLOR: {
+                    Color color = lights.get(in.readInt()).color();
+
+                    color.r = in.readFloat();
+                    color.g = in.readFloat();
+                    color.b = in.readFloat();
+                    color.a = in.readFloat();
+                    break;
+                }
+
+                case SceneRecorder.LIGHT_REMOVE:
+                    server.removeLight(lights.remove(in.readInt()));
+                    break;
+
+                case SceneRecorder.CLIENT_ADD: {
+                    int id = in.readInt();
+                    boolean staticClient = in.readBoolean();
+
+                    ReplayClient client = new ReplayClient();
+                    readGeometry(client);
+                    clients.put(id, client);
+
+                    if (staticClient)
+                        server.addStaticClient(client);
+                    else
+                        server.addClient(client);
+                    break;
+                }
+
+                case SceneRecorder.CLIENT_CHANGE: {
+                    ReplayClient client = clients.get(in.readInt());
+
+                    readGeometry(client);
+
+                    // Для динамического клиента ничего не делает, он и так перечитывается каждый кадр
+                    server.refreshStaticClient(client);
+                    break;
+                }
+
+                case SceneRecorder.CLIENT_REMOVE:
+                    server.removeClient(clients.remove(in.readInt()));
+                    break;
+
+                case SceneRecorder.VIEW:
+                    readView();
+                    break;
+
+                case SceneRecorder.SETTINGS: {
+                    int settings = in.readInt();
+
+                    server.setShadersEnabled((settings & 1) != 0);
+                    server.setSpatialIndexEnabled((settings & 2) != 0);
+                    server.setLightMapsEnabled((settings & 4) != 0);
+                    server.setShadowMode(ShadowServer.ShadowMode.values()[settings >> 3]);
+                    break;
+                }
+
+                case SceneRecorder.SHADOW_BUDGET:
+                    server.setShadowedLightBudget(in.readInt());
+                    break;
+
+                case SceneRecorder.CLUSTER_TOLERANCE:
+                    server.setLightClusterTolerance(in.readFloat());
+                    break;
+
+                case SceneRecorder.LIGHT_THRESHOLD:
+                    server.setLightThreshold(in.readFloat());
+                    break;
+
+                case SceneRecorder.FRAME:
+                    return true;
+
+                default:
+                    throw new IOException("Unknown scene event " + event);
+            }
+        }
+    }
+
+    // До третьей версии признака не было, а сессия без области видимости записывалась нулями
+    private void readView() throws IOException {
+        boolean viewEnabled = version < 3 || in.readBoolean();
+
+        if (!viewEnabled) {
+            server.clearView();
+            return;
+        }
+
+        float x = in.readFloat();
+        float y = in.readFloat();
+        float width = in.readFloat();
+        float height = in.readFloat();
+
+        if (version < 3 && width == 0.0f && height == 0.0f)
+            server.clearView();
+        else
+            server.setView(x, y, width, height);
+    }
+
+    private void readGeometry(ReplayClient client) throws IOException {
+        client.shape = IShadowClient.Shape.values()[in.readUnsignedByte()];
+        client.radius = in.readFloat();
+
+        int length = in.readInt() * 2;
+
+        if (client.vertices == null || client.vertices.length != length)
+            client.vertices = new float[length];
+
+        for (int i = 0; i < length; i++) {
+            client.vertices[i] = in.readFloat();
+        }
+    }
+
+    // SceneReplay <файл> [--render]
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: SceneReplay <recording> [--render]");
+            return;
+        }
+
+        boolean render = Arrays.asList(args).contains("--render");
+        long window = NULL;
+
+        if (render) {
+            if (!glfwInit())
+                throw new IllegalStateException("Unable to initialize GLFW");
+
+            glfwDefaultWindowHints();
+            glfwWindowHint(GLFW_VISIBLE, GLFW_FALSE);
+            glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 2);
+            glfwWindowHint(GLFW_CONTEXT_VERSION_MINOR, 0);
+
+            window = glfwCreateWindow(800, 600, "Replay", NULL, NULL);
+            if (window == NULL)
+                throw new RuntimeException("Failed to create the GLFW window");
+
+            glfwMakeContextCurrent(window);
+            glfwSwapInterval(0);
+            GL.createCapabilities();
+
+            glEnable(GL_BLEND);
+            glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+            glEnable(GL_CULL_FACE);
+        }
+
+        ShadowServer server = new ShadowServer();
+        server.metrics().setEnabled(true);
+
+        // Запись читается целиком заранее, чтобы диск не попадал во время кадров
+        byte[] recording = Files.readAllBytes(Paths.get(args[0]));
+        SceneReplay replay = new SceneReplay(new ByteArrayInputStream(recording), server);
+
+        FrameTimes updateTimes = new FrameTimes();
+        FrameTimes drawTimes = new FrameTimes();
+        int frames = 0;
+
+        try {
+            while (replay.nextFrame()) {
+                long time = System.nanoTime();
+                server.update();
+                updateTimes.add(System.nanoTime() - time);
+
+                if (render) {
+                    time = System.nanoTime();
+
+                    glClear(GL_COLOR_BUFFER_BIT);
+                    glLoadIdentity();
+                    // Без области видимости координаты мира совпадают с пикселями окна, как в Hello
+                    if (server.viewEnabled()) {
+                        glOrtho(server.viewX(), server.viewX() + server.viewWidth(),
+                                server.viewY(), server.viewY() + server.viewHeight(), -1, 1);
+                    } else {
+                        glOrtho(0.0f, 800.0f, 0.0f, 600.0f, -1, 1);
+                    }
+
+                    server.draw();
+
+                    // Ждём GPU, иначе замерится только постановка команд в очередь
+                    glFinish();
+                    drawTimes.add(System.nanoTime() - time);
+
+                    glfwSwapBuffers(window);
+                    glfwPollEvents();
+                } else {
+                    // С рисованием кадр метрик заканчивает draw()
+                    server.metrics().endFrame();
+                }
+
+                frames++;
+            }
+        } catch (EOFException e) {
+            System.err.println("Recording is truncated after frame " + frames);
+        }
+
+        if (frames == 0) {
+            System.out.println("No frames recorded");
+        } else {
+            System.out.println("Frames " + frames + ", lights " + server.geometry().lights().size());
+            System.out.print(updateTimes.summary("update"));
+
+            if (render)
+                System.out.print(drawTimes.summary("draw"));
+
+            System.out.print(server.metrics().snapshot());
+        }
+
+        if (render) {
+            glfwDestroyWindow(window);
+            glfwTerminate();
+        }
+    }
+}
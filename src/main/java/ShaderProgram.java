@@ -1,45 +1,356 @@
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryStack;
+
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.URISyntaxException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL41.*;
 
+// Исходники шейдеров читаются из classpath, так что работают и из jar. Слинкованная программа
+// сохраняется на диск и при следующем запуске грузится через glProgramBinary без компиляции
 public class ShaderProgram {
+    // null - не кэшировать. Задаётся свойством shaders.cache, пустое значение выключает кэш,
+    // по умолчанию ~/.cache/shadows/shaders
+    private static Path cacheDirectory = defaultCacheDirectory();
+
     private int id;
+    private boolean linked;
+
+    // Шейдеры компилируются только в link(), если программы нет в кэше
+    private final List<Integer> shaderModes = new ArrayList<>();
+    private final List<String> shaderSources = new ArrayList<>();
+    private final Map<String, Integer> attributeBindings = new HashMap<>();
+
+    // Положения uniform и атрибутов запрашиваются у драйвера один раз после линковки
+    private final Map<String, Integer> uniformLocations = new HashMap<>();
+    private final Map<String, Integer> attributeLocations = new HashMap<>();
 
     public ShaderProgram() {
         id = glCreateProgram();
     }
 
+    private static Path defaultCacheDirectory() {
+        String property = System.getProperty("shaders.cache");
+
+        if (property == null)
+            return Paths.get(System.getProperty("user.home"), ".cache", "shadows", "shaders");
+
+        return property.isEmpty() ? null : Paths.get(property);
+    }
+
+    public static Path cacheDirectory() {
+        return cacheDirectory;
+    }
+
+    public static void setCacheDirectory(Path cacheDirectory) {
+        ShaderProgram.cacheDirectory = cacheDirectory;
+    }
+
     public void loadShader(int mode, String filename) throws IOException {
-        StringBuilder string = new StringBuilder();
+        shaderModes.add(mode);
+        shaderSources.add(readSource(filename));
+    }
 
-        List<String> lines = null;
+    // Применяется при линковке, поэтому звать до link()
+    public void bindAttribLocation(int index, String name) {
+        attributeBindings.put(name, index);
+    }
 
-        try {
-            lines = Files.readAllLines(Paths.get(this.getClass().getResource(filename).toURI()), StandardCharsets.UTF_8);
-        } catch (NullPointerException e) {
-            throw new IOException();
-        } catch (URISyntaxException e) {
-            e.printStackTrace();
+    // Грузит программу из кэша, а если её там нет или драйвер её не принял, компилирует и сохраняет
+    public boolean link() {
+        boolean binarySupported = binarySupported();
+        Path cacheFile = null;
+
+        if (binarySupported && cacheDirectory != null) {
+            cacheFile = cacheDirectory.resolve(cacheKey() + ".bin");
+
+            if (loadBinary(cacheFile)) {
+                linked = true;
+                resolveLocations();
+                return true;
+            }
+        }
+
+        List<Integer> shaders = new ArrayList<>();
+
+        for (int i = 0; i < shaderSources.size(); i++) {
+            int shaderId = glCreateShader(shaderModes.get(i));
+
+            glShaderSource(shaderId, shaderSources.get(i));
+            glCompileShader(shaderId);
+
+            if (glGetShaderi(shaderId, GL_COMPILE_STATUS) == GL_FALSE)
+                System.err.println(glGetShaderInfoLog(shaderId));
+
+            glAttachShader(id, shaderId);
+            shaders.add(shaderId);
+        }
+
+        for (Map.Entry<String, Integer> binding: attributeBindings.entrySet()) {
+            glBindAttribLocation(id, binding.getValue(), binding.getKey());
         }
 
-        for (String line : lines)
-            string.append(line).append('\n');
+        if (binarySupported)
+            glProgramParameteri(id, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
 
-        int shaderId = glCreateShader(mode);
+        glLinkProgram(id);
 
-        glShaderSource(shaderId, string.toString());
-        glCompileShader(shaderId);
-        System.out.println(glGetShaderInfoLog(shaderId));
+        // Слинкованной программе шейдеры больше не нужны
+        for (int shaderId: shaders) {
+            glDetachShader(id, shaderId);
+            glDeleteShader(shaderId);
+        }
+
+        linked = glGetProgrami(id, GL_LINK_STATUS) == GL_TRUE;
+
+        if (!linked) {
+            System.err.println(glGetProgramInfoLog(id));
+            return false;
+        }
 
-        glAttachShader(id, shaderId);
+        if (cacheFile != null)
+            saveBinary(cacheFile);
+
+        resolveLocations();
+        return true;
+    }
+
+    public boolean linked() {
+        return linked;
+    }
+
+    public int uniformLocation(String name) {
+        Integer location = uniformLocations.get(name);
+
+        if (location == null) {
+            location = glGetUniformLocation(id, name);
+            uniformLocations.put(name, location);
+        }
+
+        return location;
+    }
+
+    public int attributeLocation(String name) {
+        Integer location = attributeLocations.get(name);
+
+        if (location == null) {
+            location = glGetAttribLocation(id, name);
+            attributeLocations.put(name, location);
+        }
+
+        return location;
     }
 
     public int id() {
         return id;
     }
+
+    private static String readSource(String filename) throws IOException {
+        try (InputStream stream = ShaderProgram.class.getResourceAsStream(filename)) {
+            if (stream == null)
+                throw new IOException("Can not find " + filename);
+
+            ByteArrayOutputStream source = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+
+            while ((read = stream.read(buffer)) != -1) {
+                source.write(buffer, 0, read);
+            }
+
+            return new String(source.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    // Без форматов бинарников драйвер только делает вид, что поддерживает расширение
+    private static boolean binarySupported() {
+        GLCapabilities capabilities = GL.getCapabilities();
+
+        if (!capabilities.OpenGL41 && !capabilities.GL_ARB_get_program_binary)
+            return false;
+
+        return glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+    }
+
+    private static boolean binaryFormatSupported(int format) {
+        int count = glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS);
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer formats = stack.mallocInt(count);
+            glGetIntegerv(GL_PROGRAM_BINARY_FORMATS, formats);
+
+            for (int i = 0; i < count; i++) {
+                if (formats.get(i) == format)
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Бинарник годится только для тех же исходников, привязок атрибутов и того же драйвера
+    private String cacheKey() {
+        MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        for (int i = 0; i < shaderSources.size(); i++) {
+            digest.update((shaderModes.get(i) + "\n" + shaderSources.get(i) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        attributeBindings.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey())
+                .forEach(binding -> digest.update((binding.getKey() + "=" + binding.getValue() + "\n")
+                        .getBytes(StandardCharsets.UTF_8)));
+
+        String driver = glGetString(GL_VENDOR) + "\n" + glGetString(GL_RENDERER) + "\n" + glGetString(GL_VERSION);
+        digest.update(driver.getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder key = new StringBuilder();
+
+        for (byte b: digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+
+        return key.toString();
+    }
+
+    // Файл: формат бинарника и сам бинарник. После обновления драйвера он может не подойти, тогда false
+    private boolean loadBinary(Path cacheFile) {
+        if (!Files.isRegularFile(cacheFile))
+            return false;
+
+        byte[] bytes;
+
+        try {
+            bytes = Files.readAllBytes(cacheFile);
+        } catch (IOException e) {
+            return false;
+        }
+
+        if (bytes.length <= Integer.BYTES)
+            return false;
+
+        ByteBuffer file = BufferUtils.createByteBuffer(bytes.length);
+        file.put(bytes).flip();
+
+        int format = file.getInt();
+
+        // Формат, которого драйвер не знает, glProgramBinary отверг бы с GL_INVALID_ENUM
+        if (!binaryFormatSupported(format))
+            return false;
+
+        glProgramBinary(id, format, file);
+
+        return glGetProgrami(id, GL_LINK_STATUS) == GL_TRUE;
+    }
+
+    // Кэш только ускоряет запуск, поэтому ошибки записи не мешают работать
+    private void saveBinary(Path cacheFile) {
+        int length = glGetProgrami(id, GL_PROGRAM_BINARY_LENGTH);
+
+        if (length <= 0)
+            return;
+
+        ByteBuffer file = BufferUtils.createByteBuffer(Integer.BYTES + length);
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer written = stack.mallocInt(1);
+            IntBuffer format = stack.mallocInt(1);
+
+            file.position(Integer.BYTES);
+            glGetProgramBinary(id, written, format, file);
+
+            file.putInt(0, format.get(0));
+            file.position(0).limit(Integer.BYTES + written.get(0));
+        }
+
+        byte[] bytes = new byte[file.remaining()];
+        file.get(bytes);
+
+        Path temp = null;
+
+        try {
+            Files.createDirectories(cacheFile.getParent());
+
+            // Через временный файл, чтобы параллельный запуск не прочитал половину бинарника
+            temp = Files.createTempFile(cacheFile.getParent(), "program", ".tmp");
+            Files.write(temp, bytes);
+
+            try {
+                Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("Can not cache shader program: " + e);
+        } finally {
+            // После удачного переноса временного файла уже нет
+            deleteQuietly(temp);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null)
+            return;
+
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.err.println("Can not delete " + path + ": " + e);
+        }
+    }
+
+    // Все активные uniform и атрибуты сразу, чтобы в кадре не было запросов к драйверу
+    private void resolveLocations() {
+        uniformLocations.clear();
+        attributeLocations.clear();
+
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer size = stack.mallocInt(1);
+            IntBuffer type = stack.mallocInt(1);
+
+            int uniforms = glGetProgrami(id, GL_ACTIVE_UNIFORMS);
+
+            for (int i = 0; i < uniforms; i++) {
+                String name = activeName(glGetActiveUniform(id, i, size, type));
+                uniformLocations.put(name, glGetUniformLocation(id, name));
+            }
+
+            int attributes = glGetProgrami(id, GL_ACTIVE_ATTRIBUTES);
+
+            for (int i = 0; i < attributes; i++) {
+                String name = activeName(glGetActiveAttrib(id, i, size, type));
+                attributeLocations.put(name, glGetAttribLocation(id, name));
+            }
+        }
+    }
+
+    // Массивы драйвер называет name[0], а в коде к ним обращаются по name
+    private static String activeName(String name) {
+        return name.endsWith("[0]") ? name.substring(0, name.length() - 3) : name;
+    }
 }
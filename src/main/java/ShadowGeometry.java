@@ -0,0 +1,1551 @@
+/*
+ * Copyright (c) 2016-2020, Мира Странная <rsxrwscjpzdzwpxaujrr@yahoo.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Геометрия теней без OpenGL: по источникам и клиентам считает четырёхугольники теней каждого источника.
+// ShadowServer рисует их, но пользоваться можно и без контекста, например на сервере
+public class ShadowGeometry {
+    private final List<IShadowClient> shadowClients = new ArrayList<>();
+
+    // Статические клиенты не сравниваются с прошлым кадром, в update() перечитываются только
+    // динамические и те статические, о которых сообщили через refreshStaticClient()
+    private final List<IShadowClient> dynamicClients = new ArrayList<>();
+    private final List<IShadowClient> pendingStaticClients = new ArrayList<>();
+    private final Map<IShadowClient, ClientData> clientData = new HashMap<>();
+    private final List<ILight> lights = new ArrayList<>();
+    private final List<ILight> readOnlyLights = Collections.unmodifiableList(lights);
+    private final Map<ILight, LightData> lightData = new HashMap<>();
+
+    private final SpatialGrid<ClientData> staticGrid = new SpatialGrid<>(gridCellSize);
+    private final SpatialGrid<ClientData> dynamicGrid = new SpatialGrid<>(gridCellSize);
+    private boolean spatialIndexEnabled = true;
+
+    // Переиспользуемые буферы, чтобы update() ничего не создавал каждый кадр
+    private final List<ClientData> candidates = new ArrayList<>();
+    private final List<LightData> dirtyLights = new ArrayList<>();
+    private float[] clientVertices = new float[12];
+    private final float[] cullCorners = new float[8];
+
+    // Пул, на котором считаются тени изменившихся источников, null - считать в вызывающем потоке
+    private ForkJoinPool shadowPool = ForkJoinPool.commonPool();
+
+    private final float lightOversize = 16.0f;
+
+    // Радиус, дальше которого свет источника не виден, null - свет до края квадрата lightOversize
+    private LightFalloff lightFalloff;
+
+    private static final int buffstep = 32;
+    private static final boolean[] noFlipped = new boolean[0];
+    private static final int minShadowCapacity = 1 << 14;
+    private static final int shrinkThreshold = 1024;
+    private static final int lightsPerTask = 4;
+    private static final float gridCellSize = 256.0f;
+    private static final int metricsFrames = 600;
+    private static final float cullMargin = 0.25f;
+
+    // Тени всех источников вне кучи, по 8 float на четырёхугольник
+    private FloatBuffer shadowBuffer;
+    private final BufferArena shadowArena = new BufferArena(minShadowCapacity);
+
+    // Какая часть shadowBuffer изменилась с прошлого markUploaded()
+    private boolean layoutChanged = true;
+    private int changedFrom = Integer.MAX_VALUE;
+    private int changedTo = 0;
+
+    // Полярные карты глубины: для каждого направления от источника расстояние до ближайшей тени.
+    // При polarResolution == 0 не считаются
+    private int polarResolution;
+    private float[] polarCos = new float[0];
+    private float[] polarSin = new float[0];
+    private boolean polarChanged = true;
+
+    private final ShadowMetrics metrics = new ShadowMetrics(metricsFrames);
+    private int pairsTested;
+    private int relayouts;
+
+    // Видимая область. Пока она не задана, считаются все источники и все клиенты
+    private boolean viewEnabled;
+    private float viewMinX;
+    private float viewMinY;
+    private float viewMaxX;
+    private float viewMaxY;
+
+    // Видимая область с запасом, по которой отсекаются источники и клиенты.
+    // Меняется, только когда видимая область из неё выходит, и тогда все источники пересчитываются
+    private float cullMinX;
+    private float cullMinY;
+    private float cullMaxX;
+    private float cullMaxY;
+
+    // Расстояние, на котором свет источника становится незаметным. Зависит от того, чем свет рисуется
+    public interface LightFalloff {
+        float radius(ILight light);
+    }
+
+    private static class LightData {
+        int offset;
+        int shadowsLength;
+        boolean enabled = true;
+        int buffsize = buffstep;
+
+        // У статического источника тени от статических клиентов запекаются в начало его участка
+        // и пересчитываются, только когда рядом меняется статический клиент
+        final boolean staticLight;
+        boolean bakedDirty = true;
+        boolean baking;
+        boolean bakedOccluded;
+        int bakedLength;
+
+        // Растёт при каждом пересчёте теней
+        long shadowsVersion;
+
+        // Положение источника, для которого посчитаны тени
+        float x;
+        float y;
+        float maxDistance;
+        boolean dirty = true;
+
+        // Половина стороны квадрата света: до неё вытягиваются тени и по ней отсекается источник
+        float extent;
+
+        // Квадрат света пересекает область отсечения. Невидимый источник не пересчитывается,
+        // но остаётся dirty и пересчитается, когда станет видимым
+        boolean visible = true;
+
+        // Запекаемые клиенты статического источника и все остальные
+        final List<ClientData> bakedClients = new ArrayList<>();
+        final List<ClientData> clients = new ArrayList<>();
+        final List<List<ClientData>> clientLists = Arrays.asList(bakedClients, clients);
+
+        // У каждого источника свой буфер проекций, чтобы источники можно было считать параллельно
+        float[] tempShadows = new float[12];
+        final float[] tangents = new float[4];
+
+        float[] polarDepth = new float[0];
+
+        private LightData(boolean staticLight) {
+            this.staticLight = staticLight;
+        }
+    }
+
+    private static class ClientData {
+        // Геометрия клиента на момент последнего update()
+        float[] vertices = new float[12];
+        int length;
+        boolean added = true;
+        boolean staticClient;
+        IShadowClient.Shape shape = IShadowClient.Shape.TRIANGLES;
+        float radius;
+
+        // Границы по вершинам, пересчитываются только при изменении клиента:
+        // прямоугольник и описанная окружность с центром в его середине
+        float minX;
+        float minY;
+        float maxX;
+        float maxY;
+        float boundRadius;
+
+        // Внешние рёбра клиента парами смещений вершин в vertices, внутренность клиента слева от ребра.
+        // У ломаных каждый отрезок записан в обе стороны, у круга рёбер нет
+        int[] edges = new int[0];
+        int edgesLength;
+
+        // Совпадающие пары внутренних рёбер (по 4 смещения) и развёрнутые по часовой треугольники.
+        // По ним проверяется, подходят ли ещё рёбра после изменения клиента
+        int[] interior = new int[0];
+        int interiorLength;
+        boolean[] flipped = new boolean[0];
+    }
+
+    public ShadowGeometry() {
+        shadowBuffer = allocateShadowBuffer(minShadowCapacity);
+    }
+
+    private static FloatBuffer allocateShadowBuffer(int capacity) {
+        return ByteBuffer.allocateDirect(capacity * Float.BYTES)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+
+    // Участок из size float в shadowBuffer. Если места нет, буфер удваивается,
+    // а уже выданные участки остаются на своих местах
+    private int allocateShadows(int size) {
+        int offset = shadowArena.allocate(size);
+
+        if (offset < 0) {
+            int capacity = Math.max(shadowArena.capacity() * 2, shadowArena.capacity() + size);
+
+            FloatBuffer oldBuffer = shadowBuffer;
+
+            shadowBuffer = allocateShadowBuffer(capacity);
+            oldBuffer.clear();
+            shadowBuffer.put(oldBuffer);
+            shadowBuffer.clear();
+
+            shadowArena.grow(capacity);
+
+            layoutChanged = true;
+            relayouts++;
+
+            offset = shadowArena.allocate(size);
+        }
+
+        return offset;
+    }
+
+    // Переносит тени источника в новый участок, сохраняя первые keep float
+    private void moveShadows(LightData data, int buffsize, int keep) {
+        int offset = allocateShadows(buffsize);
+
+        if (keep > 0) {
+            FloatBuffer shadows = shadowBuffer.duplicate();
+
+            shadows.position(data.offset).limit(data.offset + keep);
+            shadowBuffer.position(offset);
+            shadowBuffer.put(shadows);
+            shadowBuffer.clear();
+
+            changedFrom = Math.min(changedFrom, offset);
+            changedTo = Math.max(changedTo, offset + keep);
+        }
+
+        shadowArena.free(data.offset, data.buffsize);
+
+        data.offset = offset;
+        data.buffsize = buffsize;
+    }
+
+    // Когда занято меньше четверти буфера, тени всех источников укладываются подряд
+    // по их нынешнему размеру, а буфер уменьшается
+    private void compactIfSparse() {
+        if (shadowArena.capacity() <= minShadowCapacity || shadowArena.used() * 4 > shadowArena.capacity())
+            return;
+
+        int total = 0;
+
+        for (int l = 0; l < lights.size(); l++) {
+            total += fittedSize(lightData.get(lights.get(l)).shadowsLength);
+        }
+
+        int capacity = Math.max(minShadowCapacity, total * 2);
+
+        FloatBuffer oldBuffer = shadowBuffer;
+
+        shadowBuffer = allocateShadowBuffer(capacity);
+        shadowArena.reset(capacity);
+
+        for (int l = 0; l < lights.size(); l++) {
+            LightData data = lightData.get(lights.get(l));
+
+            int buffsize = fittedSize(data.shadowsLength);
+            int offset = shadowArena.allocate(buffsize);
+
+            if (data.shadowsLength > 0) {
+                FloatBuffer shadows = oldBuffer.duplicate();
+
+                shadows.position(data.offset).limit(data.offset + data.shadowsLength);
+                shadowBuffer.position(offset);
+                shadowBuffer.put(shadows);
+                shadowBuffer.clear();
+            }
+
+            data.offset = offset;
+            data.buffsize = buffsize;
+        }
+
+        layoutChanged = true;
+        relayouts++;
+    }
+
+    private static int fittedSize(int length) {
+        return Math.max(buffstep, (length + 255) / 256 * 256);
+    }
+
+    public void update() {
+        long time = metrics.time();
+
+        refresh();
+        time = metrics.lap(ShadowMetrics.Metric.REFRESH_NANOS, time);
+
+        broadphase();
+        time = metrics.lap(ShadowMetrics.Metric.BROADPHASE_NANOS, time);
+
+        occlusion();
+        time = metrics.lap(ShadowMetrics.Metric.OCCLUSION_NANOS, time);
+
+        project();
+        metrics.lap(ShadowMetrics.Metric.PROJECTION_NANOS, time);
+
+        if (metrics.enabled()) {
+            int quads = 0;
+
+            for (int l = 0; l < dirtyLights.size(); l++) {
+                LightData data = dirtyLights.get(l);
+
+                quads += (data.shadowsLength - (data.baking ? 0 : data.bakedLength)) / 8;
+            }
+
+            metrics.add(ShadowMetrics.Metric.LIGHTS_PROJECTED, dirtyLights.size());
+            metrics.add(ShadowMetrics.Metric.QUADS_EMITTED, quads);
+            metrics.add(ShadowMetrics.Metric.PAIRS_TESTED, pairsTested);
+            metrics.add(ShadowMetrics.Metric.RELAYOUTS, relayouts);
+        }
+
+        relayouts = 0;
+    }
+
+    // Источник пересчитывается, только если сдвинулся он сам или изменились клиенты рядом с ним
+    void refresh() {
+        for (int l = 0; l < lights.size(); l++) {
+            ILight light = lights.get(l);
+            LightData data = lightData.get(light);
+
+            float x = light.x();
+            float y = light.y();
+            float maxDistance = light.maxDistance();
+            float extent = lightExtent(light, maxDistance);
+
+            if (x != data.x || y != data.y || maxDistance != data.maxDistance || extent != data.extent) {
+                data.x = x;
+                data.y = y;
+                data.maxDistance = maxDistance;
+                data.extent = extent;
+                data.dirty = true;
+                data.bakedDirty = true;
+            }
+
+            data.visible = !viewEnabled || lightIntersects(data, cullMinX, cullMinY, cullMaxX, cullMaxY);
+        }
+
+        for (int c = 0; c < dynamicClients.size(); c++) {
+            IShadowClient client = dynamicClients.get(c);
+
+            refreshClient(client, clientData.get(client));
+        }
+
+        for (int c = 0; c < pendingStaticClients.size(); c++) {
+            IShadowClient client = pendingStaticClients.get(c);
+            ClientData data = clientData.get(client);
+
+            // Клиент могли убрать до update()
+            if (data != null)
+                refreshClient(client, data);
+        }
+
+        pendingStaticClients.clear();
+    }
+
+    // Собирает клиентов рядом с каждым изменившимся источником
+    void broadphase() {
+        dirtyLights.clear();
+        pairsTested = 0;
+
+        for (int l = 0; l < lights.size(); l++) {
+            LightData data = lightData.get(lights.get(l));
+
+            if (data.dirty && data.visible) {
+                // Динамический источник всегда пересчитывается целиком
+                data.baking = data.bakedDirty || !data.staticLight;
+                data.bakedDirty = false;
+
+                collectClients(data);
+                dirtyLights.add(data);
+
+                data.dirty = false;
+            }
+        }
+    }
+
+    // Выключает источники, которые оказались внутри клиента. Считается только для изменившихся источников,
+    // а внутри запечённых клиентов - только при запекании, до тех пор результат хранится в bakedOccluded
+    void occlusion() {
+        for (int l = 0; l < dirtyLights.size(); l++) {
+            LightData data = dirtyLights.get(l);
+
+            if (data.baking) {
+                data.bakedOccluded = isInsideClient(data, data.bakedClients);
+
+                if (data.bakedOccluded)
+                    data.bakedClients.clear();
+            }
+
+            // Запечённые тени считаются и у закрытого источника, иначе они пропадут, когда динамический клиент уйдёт
+            if (data.bakedOccluded || isInsideClient(data, data.clients)) {
+                data.enabled = false;
+                data.clients.clear();
+            }
+        }
+    }
+
+    void project() {
+        reserveShadows();
+
+        // Источники независимы друг от друга и пишут каждый в свою часть shadowBuffer,
+        // поэтому результат не зависит от того, сколько потоков их считало
+        if (shadowPool != null && dirtyLights.size() > lightsPerTask) {
+            shadowPool.invoke(new ProjectionTask(0, dirtyLights.size()));
+        } else {
+            for (int l = 0; l < dirtyLights.size(); l++) {
+                projectShadows(dirtyLights.get(l));
+            }
+        }
+
+        for (int l = 0; l < dirtyLights.size(); l++) {
+            LightData data = dirtyLights.get(l);
+
+            // Запечённое начало участка не менялось, если источник не запекался заново
+            int from = data.offset + (data.baking ? 0 : data.bakedLength);
+            int to = data.offset + data.shadowsLength;
+
+            if (from < to) {
+                changedFrom = Math.min(changedFrom, from);
+                changedTo = Math.max(changedTo, to);
+            }
+        }
+
+        if (polarResolution > 0 && !dirtyLights.isEmpty())
+            polarChanged = true;
+
+        compactIfSparse();
+    }
+
+    // Заставляет пересчитать все источники в следующем update()
+    void invalidate() {
+        for (int l = 0; l < lights.size(); l++) {
+            LightData data = lightData.get(lights.get(l));
+
+            data.dirty = true;
+            data.bakedDirty = true;
+        }
+    }
+
+    private class ProjectionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        private ProjectionTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= lightsPerTask) {
+                for (int l = from; l < to; l++) {
+                    projectShadows(dirtyLights.get(l));
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+
+                invokeAll(new ProjectionTask(from, middle), new ProjectionTask(middle, to));
+            }
+        }
+    }
+
+    // Сравнивает клиента с тем, что было в прошлом кадре, и помечает источники
+    // рядом со старым и новым положением, если клиент изменился
+    private void refreshClient(IShadowClient client, ClientData data) {
+        float[] vertices = clientVertices(client);
+        int length = client.vertexCount() * 2;
+
+        IShadowClient.Shape shape = client.shape();
+        float radius = client.radius();
+
+        boolean changed = data.added || length != data.length || shape != data.shape || radius != data.radius;
+
+        for (int i = 0; i < length && !changed; i++) {
+            changed = vertices[i] != data.vertices[i];
+        }
+
+        if (!changed)
+            return;
+
+        if (!data.added)
+            markLightsNear(data);
+
+        if (data.vertices.length < length)
+            data.vertices = new float[length];
+
+        System.arraycopy(vertices, 0, data.vertices, 0, length);
+
+        data.length = length;
+        data.shape = shape;
+        data.radius = radius;
+        data.added = false;
+
+        // Рёбра контура считаются за линейное время, их проще собрать заново
+        if (shape != IShadowClient.Shape.TRIANGLES || !edgesValid(data))
+            updateEdges(data);
+
+        updateBounds(data);
+
+        markLightsNear(data);
+
+        if (spatialIndexEnabled)
+            updateClientBounds(data);
+    }
+
+    // Рёбра остаются верными, пока треугольники не перевернулись и внутренние рёбра по-прежнему совпадают,
+    // например когда клиент просто сдвинулся
+    private static boolean edgesValid(ClientData data) {
+        float[] vertices = data.vertices;
+
+        if (data.flipped.length != data.length / 6)
+            return false;
+
+        for (int t = 0; t < data.flipped.length; t++) {
+            if (signedArea(vertices, t * 6) < 0.0f != data.flipped[t])
+                return false;
+        }
+
+        for (int i = 0; i < data.interiorLength; i += 4) {
+            if (!samePoint(vertices, data.interior[i], data.interior[i + 3]) ||
+                    !samePoint(vertices, data.interior[i + 1], data.interior[i + 2]))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static void updateBounds(ClientData data) {
+        float[] vertices = data.vertices;
+
+        if (data.shape == IShadowClient.Shape.CIRCLE) {
+            data.minX = vertices[0] - data.radius;
+            data.minY = vertices[1] - data.radius;
+            data.maxX = vertices[0] + data.radius;
+            data.maxY = vertices[1] + data.radius;
+            data.boundRadius = data.radius;
+            return;
+        }
+
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+
+        for (int i = 0; i < data.length; i += 2) {
+            minX = Math.min(minX, vertices[i]);
+            minY = Math.min(minY, vertices[i + 1]);
+            maxX = Math.max(maxX, vertices[i]);
+            maxY = Math.max(maxY, vertices[i + 1]);
+        }
+
+        float centerX = (minX + maxX) / 2.0f;
+        float centerY = (minY + maxY) / 2.0f;
+        float radius2 = 0.0f;
+
+        for (int i = 0; i < data.length; i += 2) {
+            float xDelta = vertices[i] - centerX;
+            float yDelta = vertices[i + 1] - centerY;
+
+            radius2 = Math.max(radius2, xDelta * xDelta + yDelta * yDelta);
+        }
+
+        data.minX = minX;
+        data.minY = minY;
+        data.maxX = maxX;
+        data.maxY = maxY;
+        data.boundRadius = (float) Math.sqrt(radius2);
+    }
+
+    // Задевает ли круг радиуса distance вокруг (x, y) прямоугольник клиента.
+    // Сначала дешёвая проверка по описанной окружности, потом точная по ближайшей точке прямоугольника
+    private static boolean reaches(ClientData client, float x, float y, float distance) {
+        float xDelta = (client.minX + client.maxX) / 2.0f - x;
+        float yDelta = (client.minY + client.maxY) / 2.0f - y;
+        float reach = distance + client.boundRadius;
+
+        if (xDelta * xDelta + yDelta * yDelta > reach * reach)
+            return false;
+
+        float nearX = Math.max(client.minX, Math.min(x, client.maxX)) - x;
+        float nearY = Math.max(client.minY, Math.min(y, client.maxY)) - y;
+
+        return nearX * nearX + nearY * nearY <= distance * distance;
+    }
+
+    private static void updateEdges(ClientData data) {
+        int count = data.length / 2;
+
+        switch (data.shape) {
+            case TRIANGLES:
+                updateTriangleEdges(data);
+                return;
+
+            case CONVEX_POLYGON:
+                // Против часовой стрелки многоугольник слева от рёбер
+                updateOutlineEdges(data, count, false, polygonArea(data.vertices, count) < 0.0f);
+                break;
+
+            case POLYLINE:
+                updateOutlineEdges(data, count - 1, true, false);
+                break;
+
+            case CLOSED_POLYLINE:
+                updateOutlineEdges(data, count, true, false);
+                break;
+
+            case CIRCLE:
+                data.edgesLength = 0;
+                break;
+        }
+
+        data.interiorLength = 0;
+        data.flipped = noFlipped;
+    }
+
+    // Рёбра между соседними вершинами контура, segments штук. Двусторонние рёбра записываются в обе стороны,
+    // и тень даст то направление, слева от которого окажется источник
+    private static void updateOutlineEdges(ClientData data, int segments, boolean twoSided, boolean reversed) {
+        int count = data.length / 2;
+        int needed = Math.max(segments, 0) * (twoSided ? 4 : 2);
+
+        if (data.edges.length < needed)
+            data.edges = new int[needed];
+
+        int[] edges = data.edges;
+        int edgesLength = 0;
+
+        for (int i = 0; i < segments; i++) {
+            int a = i * 2;
+            int b = (i + 1) % count * 2;
+
+            edges[edgesLength] = reversed ? b : a;
+            edges[edgesLength + 1] = reversed ? a : b;
+            edgesLength += 2;
+
+            if (twoSided) {
+                edges[edgesLength] = b;
+                edges[edgesLength + 1] = a;
+                edgesLength += 2;
+            }
+        }
+
+        data.edgesLength = edgesLength;
+    }
+
+    private static float polygonArea(float[] vertices, int count) {
+        float area = 0.0f;
+
+        for (int i = 0; i < count; i++) {
+            int a = i * 2;
+            int b = (i + 1) % count * 2;
+
+            area += vertices[a] * vertices[b + 1] - vertices[b] * vertices[a + 1];
+        }
+
+        return area / 2.0f;
+    }
+
+    // Рёбра, общие для двух треугольников, лежат внутри клиента и тени не дают, остальные ориентируются
+    // так, чтобы клиент был слева. Перебор пар квадратичный, но считается только при изменении формы
+    private static void updateTriangleEdges(ClientData data) {
+        float[] vertices = data.vertices;
+        int triangles = data.length / 6;
+        int halfEdges = triangles * 3;
+
+        int[] half = new int[halfEdges * 2];
+        boolean[] flipped = new boolean[triangles];
+
+        for (int t = 0; t < triangles; t++) {
+            int o = t * 6;
+
+            flipped[t] = signedArea(vertices, o) < 0.0f;
+
+            int second = flipped[t] ? o + 4 : o + 2;
+            int third = flipped[t] ? o + 2 : o + 4;
+
+            half[t * 6] = o;
+            half[t * 6 + 1] = second;
+            half[t * 6 + 2] = second;
+            half[t * 6 + 3] = third;
+            half[t * 6 + 4] = third;
+            half[t * 6 + 5] = o;
+        }
+
+        boolean[] matched = new boolean[halfEdges];
+        int[] interior = new int[halfEdges * 2];
+        int interiorLength = 0;
+
+        for (int i = 0; i < halfEdges; i++) {
+            if (matched[i])
+                continue;
+
+            int a = half[i * 2];
+            int b = half[i * 2 + 1];
+
+            for (int j = i + 1; j < halfEdges; j++) {
+                if (matched[j])
+                    continue;
+
+                int c = half[j * 2];
+                int d = half[j * 2 + 1];
+
+                if (samePoint(vertices, a, d) && samePoint(vertices, b, c)) {
+                    matched[i] = true;
+                    matched[j] = true;
+
+                    interior[interiorLength] = a;
+                    interior[interiorLength + 1] = b;
+                    interior[interiorLength + 2] = c;
+                    interior[interiorLength + 3] = d;
+                    interiorLength += 4;
+                    break;
+                }
+            }
+        }
+
+        int[] edges = new int[(halfEdges - interiorLength / 2) * 2];
+        int edgesLength = 0;
+
+        for (int i = 0; i < halfEdges; i++) {
+            if (!matched[i]) {
+                edges[edgesLength] = half[i * 2];
+                edges[edgesLength + 1] = half[i * 2 + 1];
+                edgesLength += 2;
+            }
+        }
+
+        data.edges = edges;
+        data.edgesLength = edgesLength;
+        data.interior = interior;
+        data.interiorLength = interiorLength;
+        data.flipped = flipped;
+    }
+
+    private static float signedArea(float[] vertices, int offset) {
+        float x1 = vertices[offset];
+        float y1 = vertices[offset + 1];
+        float x2 = vertices[offset + 2];
+        float y2 = vertices[offset + 3];
+        float x3 = vertices[offset + 4];
+        float y3 = vertices[offset + 5];
+
+        return (x1 * (y2 - y3) + x2 * (y3 - y1) + x3 * (y1 - y2)) / 2.0f;
+    }
+
+    private static boolean samePoint(float[] vertices, int a, int b) {
+        return vertices[a] == vertices[b] && vertices[a + 1] == vertices[b + 1];
+    }
+
+    private void markLightsNear(ClientData client) {
+        for (int l = 0; l < lights.size(); l++) {
+            LightData data = lightData.get(lights.get(l));
+
+            if (reaches(client, data.x, data.y, shadowReach(data))) {
+                data.dirty = true;
+                data.bakedDirty |= client.staticClient;
+            }
+        }
+    }
+
+    // Без запекания собираются только динамические клиенты, запечённые остаются как были
+    private void collectClients(LightData data) {
+        if (data.baking) {
+            data.bakedClients.clear();
+            data.bakedLength = 0;
+            data.bakedOccluded = false;
+        }
+
+        data.clients.clear();
+        data.enabled = true;
+
+        float srcX = data.x;
+        float srcY = data.y;
+        float srcSize = shadowReach(data);
+
+        candidates.clear();
+
+        if (spatialIndexEnabled) {
+            if (data.baking)
+                staticGrid.query(srcX - srcSize, srcY - srcSize, srcX + srcSize, srcY + srcSize, candidates);
+
+            dynamicGrid.query(srcX - srcSize, srcY - srcSize, srcX + srcSize, srcY + srcSize, candidates);
+        } else {
+            for (int c = 0; c < shadowClients.size(); c++) {
+                ClientData client = clientData.get(shadowClients.get(c));
+
+                if (data.baking || !client.staticClient)
+                    candidates.add(client);
+            }
+        }
+
+        pairsTested += candidates.size();
+
+        // Источник за пределами области отсечения видит её под углом меньше пи,
+        // между лучами на крайние углы области. Тени клиентов вне этого клина в неё не попадают
+        boolean wedge = viewEnabled &&
+                (srcX < cullMinX || srcX > cullMaxX || srcY < cullMinY || srcY > cullMaxY);
+
+        float rightX = 0.0f;
+        float rightY = 0.0f;
+        float leftX = 0.0f;
+        float leftY = 0.0f;
+        float viewDistance = 0.0f;
+
+        if (wedge) {
+            cullCorners[0] = cullMinX - srcX;
+            cullCorners[1] = cullMinY - srcY;
+            cullCorners[2] = cullMaxX - srcX;
+            cullCorners[3] = cullMinY - srcY;
+            cullCorners[4] = cullMaxX - srcX;
+            cullCorners[5] = cullMaxY - srcY;
+            cullCorners[6] = cullMinX - srcX;
+            cullCorners[7] = cullMaxY - srcY;
+
+            for (int i = 0; i < 8; i += 2) {
+                float x = cullCorners[i];
+                float y = cullCorners[i + 1];
+
+                boolean right = true;
+                boolean left = true;
+
+                for (int j = 0; j < 8; j += 2) {
+                    float cross = x * cullCorners[j + 1] - y * cullCorners[j];
+
+                    right &= cross >= 0.0f;
+                    left &= cross <= 0.0f;
+                }
+
+                if (right) {
+                    rightX = x;
+                    rightY = y;
+                }
+
+                if (left) {
+                    leftX = x;
+                    leftY = y;
+                }
+
+                viewDistance = Math.max(viewDistance, x * x + y * y);
+            }
+        }
+
+        for (int c = 0; c < candidates.size(); c++) {
+            ClientData client = candidates.get(c);
+
+            if (reaches(client, srcX, srcY, srcSize)) {
+                if (wedge && !castsIntoWedge(client, srcX, srcY, rightX, rightY, leftX, leftY, viewDistance))
+                    continue;
+
+                if (data.staticLight && client.staticClient) {
+                    data.bakedClients.add(client);
+                } else {
+                    data.clients.add(client);
+                }
+            }
+        }
+    }
+
+    // Консервативно: false, только если прямоугольник клиента целиком справа от правого луча клина,
+    // целиком слева от левого или дальше от источника, чем любая точка области отсечения
+    private static boolean castsIntoWedge(ClientData client, float srcX, float srcY,
+                                          float rightX, float rightY, float leftX, float leftY,
+                                          float viewDistance) {
+        float minX = client.minX - srcX;
+        float minY = client.minY - srcY;
+        float maxX = client.maxX - srcX;
+        float maxY = client.maxY - srcY;
+
+        float nearX = Math.max(minX, Math.min(0.0f, maxX));
+        float nearY = Math.max(minY, Math.min(0.0f, maxY));
+
+        if (nearX * nearX + nearY * nearY > viewDistance)
+            return false;
+
+        boolean outsideRight = true;
+        boolean outsideLeft = true;
+
+        for (int i = 0; i < 4; i++) {
+            float x = (i & 1) == 0 ? minX : maxX;
+            float y = (i & 2) == 0 ? minY : maxY;
+
+            outsideRight &= rightX * y - rightY * x < 0.0f;
+            outsideLeft &= leftX * y - leftY * x > 0.0f;
+        }
+
+        return !outsideRight && !outsideLeft;
+    }
+
+    private boolean lightIntersects(LightData data, float minX, float minY, float maxX, float maxY) {
+        float size = data.extent;
+
+        return data.x + size > minX && data.x - size < maxX && data.y + size > minY && data.y - size < maxY;
+    }
+
+    private static boolean isInsideClient(LightData data, List<ClientData> clients) {
+        float srcX = data.x;
+        float srcY = data.y;
+
+        for (int c = 0; c < clients.size(); c++) {
+            ClientData client = clients.get(c);
+
+            if (srcX >= client.minX && srcX <= client.maxX && srcY >= client.minY && srcY <= client.maxY &&
+                    containsPoint(client, srcX, srcY))
+                return true;
+        }
+
+        return false;
+    }
+
+    private static boolean containsPoint(ClientData client, float x, float y) {
+        float[] vertices = client.vertices;
+
+        switch (client.shape) {
+            case TRIANGLES:
+            case CONVEX_POLYGON:
+                return windingNumber(client, x, y) != 0;
+
+            case CIRCLE:
+                double xDelta = (double) x - vertices[0];
+                double yDelta = (double) y - vertices[1];
+
+                return xDelta * xDelta + yDelta * yDelta < (double) client.radius * client.radius;
+
+            default:
+                return false;
+        }
+    }
+
+    // Сколько раз внешние рёбра обходят точку. Клиент слева от своих рёбер, а внутренние рёбра
+    // между треугольниками уже выброшены, поэтому внутри клиента число не ноль и для невыпуклых
+    // клиентов. Разности float точны в double, так что знак поворота определяется без эпсилона
+    private static int windingNumber(ClientData client, float x, float y) {
+        float[] vertices = client.vertices;
+        int winding = 0;
+
+        for (int e = 0; e < client.edgesLength; e += 2) {
+            int a = client.edges[e];
+            int b = client.edges[e + 1];
+
+            float ay = vertices[a + 1];
+            float by = vertices[b + 1];
+
+            if (ay <= y) {
+                if (by > y && side(vertices, a, b, x, y) > 0.0)
+                    winding++;
+            } else {
+                if (by <= y && side(vertices, a, b, x, y) < 0.0)
+                    winding--;
+            }
+        }
+
+        return winding;
+    }
+
+    // Больше нуля, если точка слева от ребра a-b
+    private static double side(float[] vertices, int a, int b, float x, float y) {
+        double edgeX = (double) vertices[b] - vertices[a];
+        double edgeY = (double) vertices[b + 1] - vertices[a + 1];
+
+        return edgeX * ((double) y - vertices[a + 1]) - edgeY * ((double) x - vertices[a]);
+    }
+
+    // Каждое внешнее ребро даёт не больше одной тени из 8 float, так что места хватит на любую проекцию.
+    // Участки меняются здесь, до проекции. Выросший источник переезжает в участок вдвое больше,
+    // сильно уменьшившийся - в участок по размеру, остальные источники не трогаются
+    private void reserveShadows() {
+        for (int l = 0; l < dirtyLights.size(); l++) {
+            LightData data = dirtyLights.get(l);
+
+            int needed = 0;
+
+            for (List<ClientData> clients: data.clientLists) {
+                for (int c = 0; c < clients.size(); c++) {
+                    needed += maxShadowsLength(clients.get(c));
+                }
+            }
+
+            // Запечённые тени остаются в начале участка, остальное всё равно будет посчитано заново
+            int keep = data.baking ? 0 : data.bakedLength;
+
+            if (needed > data.buffsize) {
+                moveShadows(data, Math.max(fittedSize(needed), data.buffsize * 2), keep);
+            } else if (needed * 4 < data.buffsize && data.buffsize > shrinkThreshold) {
+                moveShadows(data, fittedSize(needed), keep);
+            }
+        }
+    }
+
+    private static int maxShadowsLength(ClientData client) {
+        return client.shape == IShadowClient.Shape.CIRCLE ? 8 : client.edgesLength * 4;
+    }
+
+    private void projectShadows(LightData data) {
+        data.shadowsVersion++;
+
+        if (data.baking) {
+            data.shadowsLength = 0;
+            projectClients(data, data.bakedClients);
+            data.bakedLength = data.shadowsLength;
+        } else {
+            data.shadowsLength = data.bakedLength;
+        }
+
+        projectClients(data, data.clients);
+
+        if (polarResolution > 0)
+            projectPolarDepth(data);
+    }
+
+    // Дописывает тени клиентов после уже посчитанных теней источника
+    private void projectClients(LightData data, List<ClientData> clients) {
+        float srcX = data.x;
+        float srcY = data.y;
+
+        for (int c = 0; c < clients.size(); c++) {
+            ClientData client = clients.get(c);
+            float srcSize = extrusionSize(data, client);
+
+            if (client.shape == IShadowClient.Shape.CIRCLE) {
+                projectCircle(data, client);
+                continue;
+            }
+
+            float[] clvtx = client.vertices;
+            int length = client.length;
+
+            if (data.tempShadows.length < length)
+                data.tempShadows = new float[length];
+
+            float[] tempShadows = data.tempShadows;
+
+            for (int i = 0; i < length; i += 2) {
+                projectToSquare(clvtx, i, tempShadows, srcX, srcY, srcSize);
+            }
+
+            // Тень дают только рёбра, повёрнутые от источника: источник слева от ребра, со стороны клиента
+            for (int e = 0; e < client.edgesLength; e += 2) {
+                int a = client.edges[e];
+                int b = client.edges[e + 1];
+
+                float cross = (clvtx[b] - clvtx[a]) * (srcY - clvtx[a + 1]) -
+                        (clvtx[b + 1] - clvtx[a + 1]) * (srcX - clvtx[a]);
+
+                if (cross <= 0.0f)
+                    continue;
+
+                putShadow(data, clvtx, tempShadows, a, b);
+            }
+        }
+    }
+
+    // Тень круга отбрасывает хорда между точками касания, источник слева от неё
+    private void projectCircle(LightData data, ClientData client) {
+        float[] tangents = data.tangents;
+
+        if (!circleTangents(client, data.x, data.y, tangents))
+            return;
+
+        if (data.tempShadows.length < 4)
+            data.tempShadows = new float[4];
+
+        float srcSize = extrusionSize(data, client);
+
+        projectToSquare(tangents, 0, data.tempShadows, data.x, data.y, srcSize);
+        projectToSquare(tangents, 2, data.tempShadows, data.x, data.y, srcSize);
+
+        putShadow(data, tangents, data.tempShadows, 0, 2);
+    }
+
+    // Точки касания лучей из (srcX, srcY) с кругом клиента, false если источник внутри круга
+    private static boolean circleTangents(ClientData client, float srcX, float srcY, float[] dst) {
+        float centerX = client.vertices[0];
+        float centerY = client.vertices[1];
+        float radius = client.radius;
+
+        float dx = srcX - centerX;
+        float dy = srcY - centerY;
+        float distance2 = dx * dx + dy * dy;
+
+        if (distance2 <= radius * radius)
+            return false;
+
+        float along = radius * radius / distance2;
+        float across = radius * (float) Math.sqrt(distance2 - radius * radius) / distance2;
+
+        dst[0] = centerX + along * dx - across * dy;
+        dst[1] = centerY + along * dy + across * dx;
+        dst[2] = centerX + along * dx + across * dy;
+        dst[3] = centerY + along * dy - across * dx;
+
+        return true;
+    }
+
+    // Проекция вершины из источника на край квадрата света со стороной 2 * srcSize
+    // Клиент у края света может выступать за его квадрат, тогда тень вытягивается до дальнего угла клиента,
+    // иначе проекция вершины легла бы ближе самой вершины
+    private static float extrusionSize(LightData data, ClientData client) {
+        float far = Math.max(Math.max(data.x - client.minX, client.maxX - data.x),
+                Math.max(data.y - client.minY, client.maxY - data.y));
+
+        return Math.max(data.extent, far);
+    }
+
+    private static void projectToSquare(float[] clvtx, int i, float[] dst, float srcX, float srcY, float srcSize) {
+        float tempSrcSize = srcSize;
+
+        // Какая-то стрёмная математика, получаем проекцию теней на краях квадрата света
+        if (!(clvtx[i] - srcX < clvtx[i + 1] - srcY ||
+                clvtx[i] - srcX > -(clvtx[i + 1] - srcY)) ||
+                (clvtx[i] - srcX < clvtx[i + 1] - srcY &&
+                        clvtx[i] - srcX > -(clvtx[i + 1] - srcY))) {
+            if (srcY < clvtx[i + 1])
+                tempSrcSize = -tempSrcSize;
+
+            dst[i] = -tempSrcSize / ((clvtx[i + 1] - srcY) / (clvtx[i] - srcX)) + srcX;
+            dst[i + 1] = srcY - tempSrcSize;
+        } else {
+            if (srcX > clvtx[i])
+                tempSrcSize = -tempSrcSize;
+
+            dst[i] = srcX + tempSrcSize;
+            dst[i + 1] = tempSrcSize / ((clvtx[i] - srcX) / (clvtx[i + 1] - srcY)) + srcY;
+        }
+    }
+
+    // Четырёхугольник тени ребра a-b: проекции вершин и сами вершины
+    private void putShadow(LightData data, float[] clvtx, float[] projected, int a, int b) {
+        int index = data.offset + data.shadowsLength;
+
+        shadowBuffer.put(index, projected[a]);
+        shadowBuffer.put(index + 1, projected[a + 1]);
+
+        shadowBuffer.put(index + 2, projected[b]);
+        shadowBuffer.put(index + 3, projected[b + 1]);
+
+        shadowBuffer.put(index + 4, clvtx[b]);
+        shadowBuffer.put(index + 5, clvtx[b + 1]);
+
+        shadowBuffer.put(index + 6, clvtx[a]);
+        shadowBuffer.put(index + 7, clvtx[a + 1]);
+
+        data.shadowsLength += 8;
+    }
+
+    // Для каждого направления ищет ближайшее пересечение луча из источника с теми же рёбрами,
+    // что дают тень в projectShadows(), поэтому тень начинается там же, где и теневой четырёхугольник
+    private void projectPolarDepth(LightData data) {
+        int resolution = polarResolution;
+
+        if (data.polarDepth.length != resolution)
+            data.polarDepth = new float[resolution];
+
+        float[] depth = data.polarDepth;
+        Arrays.fill(depth, Float.POSITIVE_INFINITY);
+
+        float srcX = data.x;
+        float srcY = data.y;
+
+        for (List<ClientData> clients: data.clientLists) {
+            for (int c = 0; c < clients.size(); c++) {
+                ClientData client = clients.get(c);
+
+                if (client.shape == IShadowClient.Shape.CIRCLE) {
+                    if (circleTangents(client, srcX, srcY, data.tangents))
+                        polarEdge(depth, data.tangents, 0, 2, srcX, srcY);
+
+                    continue;
+                }
+
+                for (int e = 0; e < client.edgesLength; e += 2) {
+                    polarEdge(depth, client.vertices, client.edges[e], client.edges[e + 1], srcX, srcY);
+                }
+            }
+        }
+    }
+
+    private void polarEdge(float[] depth, float[] clvtx, int a, int b, float srcX, float srcY) {
+        int resolution = depth.length;
+        double binAngle = 2.0 * Math.PI / resolution;
+
+        float ax = clvtx[a] - srcX;
+        float ay = clvtx[a + 1] - srcY;
+        float ex = clvtx[b] - clvtx[a];
+        float ey = clvtx[b + 1] - clvtx[a + 1];
+
+        if (ex * -ay - ey * -ax <= 0.0f)
+            return;
+
+        double angleA = Math.atan2(ay, ax);
+        double span = Math.atan2(clvtx[b + 1] - srcY, clvtx[b] - srcX) - angleA;
+
+        // Ребро видно из источника под углом меньше пи, идём по короткой дуге
+        if (span > Math.PI)
+            span -= 2.0 * Math.PI;
+        else if (span < -Math.PI)
+            span += 2.0 * Math.PI;
+
+        double from = span >= 0.0 ? angleA : angleA + span;
+
+        int first = (int) Math.ceil((from + Math.PI) / binAngle - 0.5);
+        int last = (int) Math.floor((from + Math.abs(span) + Math.PI) / binAngle - 0.5);
+
+        float numerator = ax * ey - ay * ex;
+
+        for (int k = first; k <= last; k++) {
+            int bin = Math.floorMod(k, resolution);
+
+            float denominator = polarCos[bin] * ey - polarSin[bin] * ex;
+
+            if (denominator == 0.0f)
+                continue;
+
+            float t = numerator / denominator;
+
+            if (t > 0.0f && t < depth[bin])
+                depth[bin] = t;
+        }
+    }
+
+    public void addClient(IShadowClient shadowClient) {
+        shadowClients.add(shadowClient);
+        dynamicClients.add(shadowClient);
+
+        // Источники рядом с новым клиентом пересчитаются в update(), когда станет известна его геометрия
+        clientData.put(shadowClient, new ClientData());
+    }
+
+    // Статический клиент читается один раз. Если он всё-таки изменился, нужно вызвать refreshStaticClient()
+    public void addStaticClient(IShadowClient shadowClient) {
+        shadowClients.add(shadowClient);
+        pendingStaticClients.add(shadowClient);
+
+        ClientData data = new ClientData();
+        data.staticClient = true;
+
+        clientData.put(shadowClient, data);
+    }
+
+    public void refreshStaticClient(IShadowClient shadowClient) {
+        pendingStaticClients.add(shadowClient);
+    }
+
+    public void removeClient(IShadowClient shadowClient) {
+        shadowClients.remove(shadowClient);
+
+        ClientData data = clientData.remove(shadowClient);
+
+        if (data == null)
+            return;
+
+        if (data.staticClient) {
+            staticGrid.remove(data);
+        } else {
+            dynamicClients.remove(shadowClient);
+            dynamicGrid.remove(data);
+        }
+
+        if (!data.added)
+            markLightsNear(data);
+    }
+
+    private void updateClientBounds(ClientData data) {
+        (data.staticClient ? staticGrid : dynamicGrid).update(data, data.minX, data.minY, data.maxX, data.maxY);
+    }
+
+    public void addLight(ILight light) {
+        addLight(light, new LightData(false));
+    }
+
+    // Тени статического источника от статических клиентов считаются один раз
+    public void addStaticLight(ILight light) {
+        addLight(light, new LightData(true));
+    }
+
+    private void addLight(ILight light, LightData data) {
+        lights.add(light);
+
+        data.offset = allocateShadows(data.buffsize);
+        lightData.put(light, data);
+
+        // Строки полярных карт идут в порядке lights
+        polarChanged = true;
+    }
+
+    // Участок источника возвращается в shadowBuffer и достанется следующим
+    public void removeLight(ILight light) {
+        lights.remove(light);
+
+        LightData data = lightData.remove(light);
+
+        if (data == null)
+            return;
+
+        shadowArena.free(data.offset, data.buffsize);
+
+        polarChanged = true;
+    }
+
+    // Вершины клиента во временном буфере, действительны до следующего вызова
+    private float[] clientVertices(IShadowClient client) {
+        int length = client.vertexCount() * 2;
+
+        if (clientVertices.length < length)
+            clientVertices = new float[length];
+
+        client.writeVertices(clientVertices, 0);
+
+        return clientVertices;
+    }
+
+    public boolean spatialIndexEnabled() {
+        return spatialIndexEnabled;
+    }
+
+    // Без индекса каждый свет перебирает всех клиентов, как раньше; оставлено для сравнения
+    public void setSpatialIndexEnabled(boolean spatialIndexEnabled) {
+        this.spatialIndexEnabled = spatialIndexEnabled;
+
+        staticGrid.clear();
+        dynamicGrid.clear();
+
+        if (spatialIndexEnabled) {
+            for (ClientData data: clientData.values()) {
+                if (!data.added)
+                    updateClientBounds(data);
+            }
+        }
+    }
+
+    public ForkJoinPool shadowPool() {
+        return shadowPool;
+    }
+
+    public void setShadowPool(ForkJoinPool shadowPool) {
+        this.shadowPool = shadowPool;
+    }
+
+    public int polarResolution() {
+        return polarResolution;
+    }
+
+    // Число направлений в полярной карте источника, 0 выключает полярные карты
+    public void setPolarResolution(int polarResolution) {
+        if (polarResolution == this.polarResolution)
+            return;
+
+        this.polarResolution = polarResolution;
+
+        polarCos = new float[polarResolution];
+        polarSin = new float[polarResolution];
+
+        // Направление k проходит через середину своего сектора, начиная с -пи, как atan() в шейдере
+        for (int k = 0; k < polarResolution; k++) {
+            double angle = -Math.PI + (k + 0.5) * 2.0 * Math.PI / polarResolution;
+
+            polarCos[k] = (float) Math.cos(angle);
+            polarSin[k] = (float) Math.sin(angle);
+        }
+
+        invalidate();
+        polarChanged = true;
+    }
+
+    // Копирует полярную карту источника в dst, длиной polarResolution(); без тени направление равно бесконечности
+    public void polarDepth(ILight light, float[] dst) {
+        float[] depth = lightData.get(light).polarDepth;
+
+        if (depth.length == dst.length) {
+            System.arraycopy(depth, 0, dst, 0, dst.length);
+        } else {
+            Arrays.fill(dst, Float.POSITIVE_INFINITY);
+        }
+    }
+
+    // Полярные карты или порядок источников поменялись с прошлого markPolarUploaded()
+    public boolean polarChanged() {
+        return polarChanged;
+    }
+
+    public void markPolarUploaded() {
+        polarChanged = false;
+    }
+
+    // Задаёт видимую область. Источники, чей квадрат света её не задевает, не пересчитываются,
+    // а клиенты, тени которых в неё не попадают, не проецируются
+    public void setView(float minX, float minY, float maxX, float maxY) {
+        viewMinX = minX;
+        viewMinY = minY;
+        viewMaxX = maxX;
+        viewMaxY = maxY;
+
+        if (viewEnabled && minX >= cullMinX && minY >= cullMinY && maxX <= cullMaxX && maxY <= cullMaxY)
+            return;
+
+        float marginX = (maxX - minX) * cullMargin;
+        float marginY = (maxY - minY) * cullMargin;
+
+        cullMinX = minX - marginX;
+        cullMinY = minY - marginY;
+        cullMaxX = maxX + marginX;
+        cullMaxY = maxY + marginY;
+
+        viewEnabled = true;
+
+        invalidate();
+    }
+
+    // Снова считает весь мир
+    public void clearView() {
+        if (!viewEnabled)
+            return;
+
+        viewEnabled = false;
+
+        invalidate();
+    }
+
+    public boolean viewEnabled() {
+        return viewEnabled;
+    }
+
+    public float viewMinX() {
+        return viewMinX;
+    }
+
+    public float viewMinY() {
+        return viewMinY;
+    }
+
+    public float viewMaxX() {
+        return viewMaxX;
+    }
+
+    public float viewMaxY() {
+        return viewMaxY;
+    }
+
+    // Квадрат света источника задевает видимую область; без области всегда true
+    public boolean lightInView(ILight light) {
+        return !viewEnabled || lightIntersects(lightData.get(light), viewMinX, viewMinY, viewMaxX, viewMaxY);
+    }
+
+    // Метрики по кадрам, по умолчанию выключены. Кадр заканчивается вызовом metrics().endFrame()
+    public ShadowMetrics metrics() {
+        return metrics;
+    }
+
+    public List<ILight> lights() {
+        return readOnlyLights;
+    }
+
+    public float lightOversize() {
+        return lightOversize;
+    }
+
+    // Половина стороны квадрата света на момент последнего update()
+    public float lightExtent(ILight light) {
+        return lightData.get(light).extent;
+    }
+
+    public LightFalloff lightFalloff() {
+        return lightFalloff;
+    }
+
+    // Источники с изменившимся радиусом пересчитаются в следующем update()
+    public void setLightFalloff(LightFalloff lightFalloff) {
+        this.lightFalloff = lightFalloff;
+    }
+
+    private float lightExtent(ILight light, float maxDistance) {
+        float extent = maxDistance * lightOversize;
+
+        if (lightFalloff != null)
+            extent = Math.min(extent, Math.max(lightFalloff.radius(light), 0.0f));
+
+        return extent;
+    }
+
+    // Дальше квадрата света клиенты тени не дают, как и дальше maxDistance()
+    private static float shadowReach(LightData data) {
+        return Math.min(data.maxDistance, data.extent);
+    }
+
+    // Источник внутри клиента выключен: он не светит и теней у него нет
+    public boolean lightEnabled(ILight light) {
+        return lightData.get(light).enabled;
+    }
+
+    public boolean lightStatic(ILight light) {
+        return lightData.get(light).staticLight;
+    }
+
+    // Меняется каждый раз, когда тени источника пересчитываются
+    public long shadowsVersion(ILight light) {
+        return lightData.get(light).shadowsVersion;
+    }
+
+    // Начало теней источника в shadowBuffer(), в float
+    public int shadowsOffset(ILight light) {
+        return lightData.get(light).offset;
+    }
+
+    // Длина теней источника в float, по 8 float на четырёхугольник
+    public int shadowsLength(ILight light) {
+        return lightData.get(light).shadowsLength;
+    }
+
+    // Тени одного источника, только для чтения и до следующего update()
+    public FloatBuffer shadows(ILight light) {
+        LightData data = lightData.get(light);
+
+        FloatBuffer shadows = shadowBuffer.asReadOnlyBuffer();
+        shadows.position(data.offset).limit(data.offset + data.shadowsLength);
+
+        return shadows.slice();
+    }
+
+    // Тени всех источников. Буфер меняется при росте и уплотнении, поэтому его нельзя сохранять между кадрами
+    public FloatBuffer shadowBuffer() {
+        return shadowBuffer;
+    }
+
+    // Буфер вырос или уплотнился, и весь shadowBuffer() нужно считать заново
+    public boolean layoutChanged() {
+        return layoutChanged;
+    }
+
+    // Изменившийся с прошлого markUploaded() участок shadowBuffer(), пустой если changedFrom() >= changedTo()
+    public int changedFrom() {
+        return changedFrom;
+    }
+
+    public int changedTo() {
+        return changedTo;
+    }
+
+    public void markUploaded() {
+        layoutChanged = false;
+        changedFrom = Integer.MAX_VALUE;
+        changedTo = 0;
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2020, Мира Странная <rsxrwscjpzdzwpxaujrr@yahoo.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Счётчики ShadowServer по кадрам. Значения кадра копятся в add() и попадают
+// в кольцевой буфер последних кадров в endFrame(). Пока метрики выключены,
+// ShadowServer и ShadowGeometry не вызывают System.nanoTime() и ничего не пишут
+public class ShadowMetrics implements ShadowMetricsMXBean {
+    public enum Metric {
+        // Время на процессоре; GL-вызовы асинхронные, поэтому для draw() это время отправки команд
+        REFRESH_NANOS,
+        BROADPHASE_NANOS,
+        OCCLUSION_NANOS,
+        PROJECTION_NANOS,
+        SHADOW_PASS_NANOS,
+        LIGHT_PASS_NANOS,
+
+        LIGHTS_ENABLED,
+        LIGHTS_CULLED,
+        LIGHTS_OCCLUDED,
+        LIGHTS_UNSHADOWED,
+        LIGHTS_PROJECTED,
+        PAIRS_TESTED,
+        QUADS_EMITTED,
+        BYTES_UPLOADED,
+        RELAYOUTS,
+        VBO_REALLOCATIONS
+    }
+
+    private static final Metric[] metrics = Metric.values();
+
+    private volatile boolean enabled;
+
+    // Пишется только потоком рисования, поэтому без блокировки
+    private final long[] current = new long[metrics.length];
+
+    // reset() из другого потока (JMX) только ставит флаг, сбрасывает следующий endFrame()
+    private volatile boolean resetRequested;
+
+    // Кадр i занимает frames[i * metrics.length ... (i + 1) * metrics.length)
+    private final long[] frames;
+    private final int capacity;
+    private long frameCount;
+
+    public ShadowMetrics(int capacity) {
+        this.capacity = capacity;
+        frames = new long[capacity * metrics.length];
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void add(Metric metric, long value) {
+        current[metric.ordinal()] += value;
+    }
+
+    // Начало замера для lap(), 0 если метрики выключены
+    public long time() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    // Добавляет к метрике время с since и возвращает начало следующего замера.
+    // since == 0 - метрики включили посреди замера, его начало неизвестно
+    public long lap(Metric metric, long since) {
+        if (!enabled)
+            return 0;
+
+        long now = System.nanoTime();
+
+        if (since != 0)
+            current[metric.ordinal()] += now - since;
+
+        return now;
+    }
+
+    public synchronized void endFrame() {
+        if (resetRequested) {
+            Arrays.fill(frames, 0);
+            frameCount = 0;
+            resetRequested = false;
+        }
+
+        int offset = (int) (frameCount % capacity) * metrics.length;
+
+        System.arraycopy(current, 0, frames, offset, metrics.length);
+        Arrays.fill(current, 0);
+
+        frameCount++;
+    }
+
+    // Кадры пропадут в ближайшем endFrame(), текущий кадр останется
+    @Override
+    public void reset() {
+        resetRequested = true;
+    }
+
+    public synchronized Snapshot snapshot() {
+        int count = (int) Math.min(frameCount, capacity);
+
+        // Значения каждой метрики по кадрам, отсортированные для процентилей
+        long[][] values = new long[metrics.length][count];
+        long[] last = new long[metrics.length];
+
+        for (int f = 0; f < count; f++) {
+            for (int m = 0; m < metrics.length; m++) {
+                values[m][f] = frames[f * metrics.length + m];
+            }
+        }
+
+        if (count > 0) {
+            int offset = (int) ((frameCount - 1) % capacity) * metrics.length;
+            System.arraycopy(frames, offset, last, 0, metrics.length);
+        }
+
+        for (long[] metricValues: values) {
+            Arrays.sort(metricValues);
+        }
+
+        return new Snapshot(frameCount, values, last);
+    }
+
+    // Сводка по последним кадрам, не меняется после создания
+    public static class Snapshot {
+        private final long frameCount;
+        private final long[][] values;
+        private final long[] last;
+
+        private Snapshot(long frameCount, long[][] values, long[] last) {
+            this.frameCount = frameCount;
+            this.values = values;
+            this.last = last;
+        }
+
+        // Всего кадров с момента reset(), а не только попавших в сводку
+        public long frameCount() {
+            return frameCount;
+        }
+
+        public int frames() {
+            return values[0].length;
+        }
+
+        public long last(Metric metric) {
+            return last[metric.ordinal()];
+        }
+
+        public double mean(Metric metric) {
+            long[] metricValues = values[metric.ordinal()];
+
+            if (metricValues.length == 0)
+                return 0.0;
+
+            double sum = 0.0;
+
+            for (long value: metricValues) {
+                sum += value;
+            }
+
+            return sum / metricValues.length;
+        }
+
+        // Ближайший ранг, percentile от 0 до 100
+        public long percentile(Metric metric, double percentile) {
+            long[] metricValues = values[metric.ordinal()];
+
+            if (metricValues.length == 0)
+                return 0;
+
+            int rank = (int) Math.ceil(percentile / 100.0 * metricValues.length) - 1;
+
+            return metricValues[Math.max(0, Math.min(metricValues.length - 1, rank))];
+        }
+
+        public long max(Metric metric) {
+            return percentile(metric, 100.0);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder string = new StringBuilder();
+
+            string.append(frames()).append(" frames\n");
+
+            for (Metric metric: metrics) {
+                string.append(String.format("%-18s mean %12.1f  p50 %10d  p95 %10d  p99 %10d  max %10d%n",
+                        metric, mean(metric), percentile(metric, 50.0), percentile(metric, 95.0),
+                        percentile(metric, 99.0), max(metric)));
+            }
+
+            return string.toString();
+        }
+    }
+
+    // Регистрирует метрики в платформенном MBeanServer как shadows:type=ShadowMetrics,name=<name>
+    public void registerMBean(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                new ObjectName("shadows:type=ShadowMetrics,name=" + ObjectName.quote(name)));
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public long getFrameCount() {
+        return snapshot().frameCount();
+    }
+
+    @Override
+    public Map<String, Long> getLast() {
+        Snapshot snapshot = snapshot();
+        Map<String, Long> result = new LinkedHashMap<>();
+
+        for (Metric metric: metrics) {
+            result.put(metric.name(), snapshot.last(metric));
+        }
+
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getMean() {
+        Snapshot snapshot = snapshot();
+        Map<String, Double> result = new LinkedHashMap<>();
+
+        for (Metric metric: metrics) {
+            result.put(metric.name(), snapshot.mean(metric));
+        }
+
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getP50() {
+        return percentiles(50.0);
+    }
+
+    @Override
+    public Map<String, Long> getP95() {
+        return percentiles(95.0);
+    }
+
+    @Override
+    public Map<String, Long> getP99() {
+        return percentiles(99.0);
+    }
+
+    @Override
+    public Map<String, Long> getMax() {
+        return percentiles(100.0);
+    }
+
+    private Map<String, Long> percentiles(double percentile) {
+        Snapshot snapshot = snapshot();
+        Map<String, Long> result = new LinkedHashMap<>();
+
+        for (Metric metric: metrics) {
+            result.put(metric.name(), snapshot.percentile(metric, percentile));
+        }
+
+        return result;
+    }
+}
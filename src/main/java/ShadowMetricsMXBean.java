@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2020, Мира Странная <rsxrwscjpzdzwpxaujrr@yahoo.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.util.Map;
+
+// Сводка ShadowMetrics для JMX, ключи — имена ShadowMetrics.Metric
+public interface ShadowMetricsMXBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getFrameCount();
+
+    Map<String, Long> getLast();
+
+    Map<String, Double> getMean();
+
+    Map<String, Long> getP50();
+
+    Map<String, Long> getP95();
+
+    Map<String, Long> getP99();
+
+    Map<String, Long> getMax();
+
+    // Кадры сбрасываются в ближайшем endFrame() потока рисования
+    void reset();
+}
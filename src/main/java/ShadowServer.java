@@ -15,66 +15,139 @@
  * along with this program. If not, see <http://www.gnu.org/licenses/>.
  */
 
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.lwjgl.BufferUtils;
 
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL20.*;
 
 public class ShadowServer {
-    private final List<IShadowClient> shadowClients = new ArrayList<>();
-    private final List<ILight> lights = new ArrayList<>();
-    private final Map<ILight, LightData> lightData;
+    public enum ShadowMode {
+        // Тени рисуются в буфер трафарета, по 8 источников за проход
+        STENCIL,
+        // У каждого источника полярная карта глубины в общей текстуре, весь свет рисуется за один проход
+        SHADOW_MAP
+    }
 
-    private int lightGradientTexture;
-    private final float lightOversize = 16.0f;
-    private final ShaderProgram program = new ShaderProgram();
-    private boolean shadersEnabled = true;
+    private final ShadowGeometry geometry = new ShadowGeometry();
 
-    private static final int buffstep = 32;
+    // Рисуемые в этом кадре источники: сначала через трафарет, с shadowedLightCount - без теней,
+    // с stencilLightCount - из карт света. enabledRows - их номера в lights()
+    private final List<ILight> enabledLights = new ArrayList<>();
+    private int[] enabledRows = new int[64];
+    private int stencilLightCount;
 
-    private final int vbo;
+    // GL-ресурсы создаются при первом draw(), без них update() работает и без контекста
+    private boolean glInitialized;
+    private int lightGradientTexture;
+    private final TextureLoader textureLoader = new TextureLoader();
+    private ShaderProgram program;
+    private boolean shadersEnabled = true;
+    private ShadowMode shadowMode = ShadowMode.STENCIL;
+
+    private int vbo;
+    private boolean vboEmpty = true;
+
+    // Квадраты света всех включённых источников, по 4 вершины на источник:
+    // x, y, s, t, r, g, b, lightX, lightY, строка в атласе, дальность глубины
+    private static final int LIGHT_VERTEX_SIZE = 11;
+    private static final int LIGHT_VERTEX_STRIDE = LIGHT_VERTEX_SIZE * Float.BYTES;
+
+    private int lightVbo;
+    private FloatBuffer lightVertices = BufferUtils.createFloatBuffer(LIGHT_VERTEX_SIZE * 4 * 64);
+
+    // Атлас полярных карт: строка на источник в порядке lights(), глубина в 16 битах каналов r и g
+    private static final int POLAR_RESOLUTION = 512;
+
+    private ShaderProgram shadowMapProgram;
+    private int shadowAtlas;
+    private int shadowAtlasHeight;
+    private ByteBuffer shadowAtlasPixels = BufferUtils.createByteBuffer(0);
+    private final float[] polarDepth = new float[POLAR_RESOLUTION];
+    private int maxTextureSize;
+
+    // Карты света статических источников, только в режиме STENCIL. Карта накрывает тот же квадрат
+    // geometry.lightExtent() вокруг источника, что и его квадрат света, и на пиксель экрана в ней
+    // не меньше текселя. Источникам, которым не хватает LIGHT_MAP_MAX_RESOLUTION, карты не дают
+    private static final int LIGHT_MAP_MIN_RESOLUTION = 64;
+    private static final int LIGHT_MAP_MAX_RESOLUTION = 2048;
+    private static final long LIGHT_MAP_BUDGET = 64L * 1024 * 1024;
+
+    private boolean lightMapsEnabled;
+    private boolean lightMapsSupported;
+    private final LightMapCache lightMaps = new LightMapCache(LIGHT_MAP_MIN_RESOLUTION, LIGHT_MAP_MAX_RESOLUTION,
+            LIGHT_MAP_BUDGET);
+    private float pixelsPerUnit;
+    private final List<MappedLight> mappedLights = new ArrayList<>();
+    private int mappedCount;
+    private final List<LightMapCache.Entry> lightMapEntries = new ArrayList<>();
+    private long frame;
+
+    private int lightMapVbo;
+    private FloatBuffer lightMapQuads = BufferUtils.createFloatBuffer(4 * 4 * 64);
+    private final int[] savedViewport = new int[4];
+    private final float[] savedClearColor = new float[4];
+    private int savedFramebuffer;
+
+    private static class MappedLight {
+        ILight light;
+        int row;
+        float coverage;
+        int resolution;
+        LightMapCache.Entry entry;
+    }
 
-    private static class LightData {
-        float[] shadows;
-        int shadowsLength;
-        boolean enabled;
-        int buffsize = buffstep;
+    // Сначала карты для источников, которые занимают больше экрана: при нехватке бюджета уступают меньшие
+    private static final Comparator<MappedLight> byCoverage = (a, b) -> Float.compare(b.coverage, a.coverage);
 
-        private LightData() {
-            setBuffsize(buffstep, null);
+    // Сколько источников за кадр рисуются через трафарет с тенями. Остальные, самые незаметные,
+    // светят без теней одним вызовом. Карты света в бюджет не входят, готовая карта почти ничего не стоит
+    private int shadowedLightBudget = Integer.MAX_VALUE;
+    private int shadowedLightCount;
+    private final List<RankedLight> rankedLights = new ArrayList<>();
 
-            clear();
-        }
+    // Если не null, в geometry лежат не сами источники, а их кластеры
+    private LightClusters lightClusters;
+    private float lightClusterTolerance;
 
-        private void clear() {
-            shadowsLength = 0;
-            enabled = true;
-        }
+    private static class RankedLight {
+        ILight light;
+        int row;
+        float importance;
+    }
 
-        public void setBuffsize(int buffsize, ShadowServer server) {
-            this.buffsize = buffsize;
+    private static final Comparator<RankedLight> byImportance = (a, b) -> Float.compare(b.importance, a.importance);
 
-            float[] oldShadows = shadows;
+    // Яркость, ниже которой свет не виден: меньше половины шага 8-битного канала округляется в ноль
+    private float lightThreshold = 0.5f / 255.0f;
 
-            shadows = new float[buffsize];
+    // Группа из 8 источников чистит и рисует трафарет только в прямоугольнике своих квадратов света
+    private final float[] modelviewMatrix = new float[16];
+    private final float[] projectionMatrix = new float[16];
+    private final int[] viewport = new int[4];
+    private final float[] scissorCorners = new float[8];
 
-            if (oldShadows != null) {
-                System.arraycopy(oldShadows, 0, shadows, 0, shadowsLength);
-            }
+    ShadowServer() {
+        geometry.setLightFalloff(this::lightRadius);
 
-            if (server != null) {
-                server.updateVboSize();
-            }
-        }
+        // Пока создаётся контекст и компилируются шейдеры, градиент уже декодируется
+        textureLoader.preload("linearLightGradient.png");
     }
 
-    ShadowServer() {
+    private void initGL() {
+        program = new ShaderProgram();
+        shadowMapProgram = new ShaderProgram();
+
         try {
-            TextureLoader textureLoader = new TextureLoader();
             lightGradientTexture = textureLoader.getTexture(
                     "linearLightGradient.png",
                     GL_TEXTURE_2D,
@@ -85,319 +158,1000 @@ public class ShadowServer {
 
             program.loadShader(GL_VERTEX_SHADER, "light.vert");
             program.loadShader(GL_FRAGMENT_SHADER, "light.frag");
+
+            shadowMapProgram.loadShader(GL_VERTEX_SHADER, "lightShadowMap.vert");
+            shadowMapProgram.loadShader(GL_FRAGMENT_SHADER, "lightShadowMap.frag");
         } catch (IOException e) {
             System.err.println("Can not find resources");
             e.printStackTrace();
         }
 
-        lightData = new HashMap<>();
+        program.bindAttribLocation(1, "lightPos");
+        program.link();
+
+        shadowMapProgram.bindAttribLocation(1, "lightPos");
+        shadowMapProgram.bindAttribLocation(2, "shadowRow");
+        shadowMapProgram.link();
 
-        glLinkProgram(program.id());
+        glUseProgram(shadowMapProgram.id());
+        glUniform1i(shadowMapProgram.uniformLocation("shadowAtlas"), 0);
+        glUseProgram(0);
 
         vbo = glGenBuffers();
-        updateVboSize();
+        lightVbo = glGenBuffers();
+        lightMapVbo = glGenBuffers();
+        lightMapsSupported = Framebuffer.supported();
+
+        shadowAtlas = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, shadowAtlas);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+
+        maxTextureSize = glGetInteger(GL_MAX_TEXTURE_SIZE);
+        lightMaps.setMaxResolution(Math.min(LIGHT_MAP_MAX_RESOLUTION, maxTextureSize));
+
+        glInitialized = true;
     }
 
-    private void updateVboSize() {
-        long vertices = 0;
+    // Все изменившиеся тени кадра загружаются одним вызовом до рисования в трафарет.
+    // Если раскладка поменялась, старое содержимое vbo отбрасывается целиком
+    private void uploadShadows() {
+        FloatBuffer shadowBuffer = geometry.shadowBuffer();
+
+        int from = geometry.changedFrom();
+        int to = geometry.changedTo();
+
+        ShadowMetrics metrics = geometry.metrics();
 
-        for (LightData data: lightData.values()) {
-            vertices += data.buffsize;
+        if (vboEmpty || geometry.layoutChanged()) {
+            glBufferData(GL_ARRAY_BUFFER, shadowBuffer, GL_DYNAMIC_DRAW);
+            vboEmpty = false;
+
+            if (metrics.enabled()) {
+                metrics.add(ShadowMetrics.Metric.VBO_REALLOCATIONS, 1);
+                metrics.add(ShadowMetrics.Metric.BYTES_UPLOADED, (long) shadowBuffer.capacity() * Float.BYTES);
+            }
+        } else if (from < to) {
+            shadowBuffer.position(from).limit(to);
+            glBufferSubData(GL_ARRAY_BUFFER, (long) from * Float.BYTES, shadowBuffer);
+            shadowBuffer.clear();
+
+            if (metrics.enabled())
+                metrics.add(ShadowMetrics.Metric.BYTES_UPLOADED, (long) (to - from) * Float.BYTES);
         }
 
-        glBindBuffer(GL_ARRAY_BUFFER, vbo);
-        glBufferData(GL_ARRAY_BUFFER, vertices * Float.BYTES * 2, GL_DYNAMIC_DRAW);
+        geometry.markUploaded();
     }
 
     public void update() {
-        for (ILight light: lights) {
-            lightData.get(light).clear();
-        }
+        if (lightClusterTolerance != (lightClusters != null ? lightClusters.tolerance() : 0.0f))
+            rebuildLightClusters();
 
-        List<IShadowClient> nearClients = new ArrayList<>();
+        if (lightClusters != null)
+            lightClusters.update();
 
-        for (ILight light: lights) {
-            LightData data = lightData.get(light);
+        geometry.update();
+    }
 
-            if (!data.enabled)
-                continue;
+    public void draw() {
+        if (!glInitialized)
+            initGL();
 
-            float srcX = light.x();
-            float srcY = light.y();
-            float srcSize = light.maxDistance();
+        List<ILight> lights = geometry.lights();
 
-            for (IShadowClient client: shadowClients) {
-                if (!data.enabled)
-                    break;
+        // Без шейдеров, или если строк атласа не хватает на все источники, рисуем через трафарет
+        boolean shadowMapped = shadowMode == ShadowMode.SHADOW_MAP && shadersEnabled && lights.size() <= maxTextureSize;
+        boolean lightMapped = lightMapsEnabled && lightMapsSupported && !shadowMapped;
 
-                float clientSize = client.size();
-                float xDelta = Math.abs(client.shadowClientX() - srcX);
-                float yDelta = Math.abs(client.shadowClientY() - srcY);
+        frame++;
 
-                if (xDelta < srcSize + clientSize && yDelta < srcSize + clientSize) {
-                    if (xDelta < clientSize * 1.5f && yDelta < clientSize * 1.5f) {
-                        float[] clvtx = client.triangles();
+        // Нужны для прямоугольников групп в drawStencil() и размера карт света
+        if (!shadowMapped) {
+            glGetFloatv(GL_MODELVIEW_MATRIX, modelviewMatrix);
+            glGetFloatv(GL_PROJECTION_MATRIX, projectionMatrix);
+            glGetIntegerv(GL_VIEWPORT, viewport);
+        }
+
+        if (lightMapped)
+            pixelsPerUnit = pixelsPerUnit();
 
-                        // Проверка перекрывает ли треугольник источник света
-                        for (int i = 0; i < clvtx.length; i += 6) {
-                            float[] triangle = new float[6];
+        enabledLights.clear();
+        mappedCount = 0;
 
-                            System.arraycopy(clvtx, i, triangle, 0, 6);
+        int occluded = 0;
 
-                            if (checkIfPointInsideTriangle(triangle, srcX, srcY)) {
-                                data.enabled = false;
-                                break;
-                            }
-                        }
-                    }
+        for (int l = 0; l < lights.size(); l++) {
+            ILight light = lights.get(l);
 
-                    if (data.enabled)
-                        nearClients.add(client);
+            if (!geometry.lightEnabled(light)) {
+                occluded++;
+            } else if (geometry.lightInView(light)) {
+                if (lightMapped && geometry.lightStatic(light)) {
+                    addMappedLight(light, l);
+                } else {
+                    addEnabledLight(light, l);
                 }
             }
         }
 
-        for (ILight light: lights) {
-            LightData data = lightData.get(light);
+        selectLightMaps();
 
-            if (!data.enabled)
-                continue;
+        // В SHADOW_MAP все тени рисуются одним проходом, и бюджет ничего не сэкономит
+        if (shadowMapped)
+            shadowedLightCount = stencilLightCount;
+        else
+            applyShadowBudget();
 
-            float srcX = light.x();
-            float srcY = light.y();
-            float srcSize = light.maxDistance();
+        ShadowMetrics metrics = geometry.metrics();
 
-            float[] tempShadows = new float[12];
+        if (metrics.enabled()) {
+            metrics.add(ShadowMetrics.Metric.LIGHTS_ENABLED, enabledLights.size());
+            metrics.add(ShadowMetrics.Metric.LIGHTS_CULLED, lights.size() - enabledLights.size() - occluded);
+            metrics.add(ShadowMetrics.Metric.LIGHTS_OCCLUDED, occluded);
+            metrics.add(ShadowMetrics.Metric.LIGHTS_UNSHADOWED, stencilLightCount - shadowedLightCount);
+        }
 
-            for (IShadowClient client: nearClients) {
-                float[] clvtx = client.triangles();
+        glBlendFunc(GL_ONE, GL_ONE);
 
-                int iter = 0;
+        if (shadowMapped) {
+            long time = metrics.time();
+            uploadShadowAtlas();
+            time = metrics.lap(ShadowMetrics.Metric.SHADOW_PASS_NANOS, time);
 
-                for (int i = 0; i < clvtx.length; i += 2) {
-                    float tempSrcSize = srcSize * lightOversize;
+            uploadLights();
+            drawShadowMapped();
+            metrics.lap(ShadowMetrics.Metric.LIGHT_PASS_NANOS, time);
+        } else {
+            drawStencil();
+        }
 
-                    // Какая-то стрёмная математика, получаем проекцию теней на краях квадрата света
-                    if (!(clvtx[i] - srcX < clvtx[i + 1] - srcY ||
-                            clvtx[i] - srcX > -(clvtx[i + 1] - srcY)) ||
-                            (clvtx[i] - srcX < clvtx[i + 1] - srcY &&
-                                    clvtx[i] - srcX > -(clvtx[i + 1] - srcY))) {
-                        if (srcY < clvtx[i + 1])
-                            tempSrcSize = -tempSrcSize;
+        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
 
-                        tempShadows[iter] = -tempSrcSize / ((clvtx[i + 1] - srcY) / (clvtx[i] - srcX)) + srcX;
-                        tempShadows[iter + 1] = srcY - tempSrcSize;
-                    } else {
-                        if (srcX > clvtx[i])
-                            tempSrcSize = -tempSrcSize;
+        if (metrics.enabled())
+            metrics.endFrame();
+    }
 
-                        tempShadows[iter] = srcX + tempSrcSize;
-                        tempShadows[iter + 1] = tempSrcSize / ((clvtx[i] - srcX) / (clvtx[i + 1] - srcY)) + srcY;
-                    }
+    private void addEnabledLight(ILight light, int row) {
+        if (enabledRows.length == enabledLights.size())
+            enabledRows = Arrays.copyOf(enabledRows, enabledRows.length * 2);
 
-                    iter += 2;
-                }
+        enabledRows[enabledLights.size()] = row;
+        enabledLights.add(light);
+    }
 
-                // Получаем из проекций теней на краях квадрата треугольники с тенями
-                for (int i = 0; i < iter; i += 6) {
-                    for (int j = 0; j < 3; j++) {
-                        int a = i + (j == 2 ? 0 : ((j + 1) * 2));
-                        int b = i + (j * 2);
+    private void addMappedLight(ILight light, int row) {
+        int resolution = lightMaps.resolutionFor(2.0f * geometry.lightExtent(light) * pixelsPerUnit);
 
-                        boolean inverted;
+        // Карта была бы грубее трафарета
+        if (resolution == 0) {
+            addEnabledLight(light, row);
+            return;
+        }
 
-                        if (!(clvtx[i] - srcX < clvtx[i + 1] - srcY ||
-                                clvtx[i] - srcX > -(clvtx[i + 1] - srcY)) ||
-                                (clvtx[i] - srcX < clvtx[i + 1] - srcY &&
-                                        clvtx[i] - srcX > -(clvtx[i + 1] - srcY))) {
-                            inverted = srcY > clvtx[i + 1];
+        if (mappedCount == mappedLights.size())
+            mappedLights.add(new MappedLight());
 
-                            if (tempShadows[inverted ? a : b] > tempShadows[inverted ? b : a]) {
-                                continue;
-                            }
-                        } else {
-                            inverted = srcX > clvtx[i];
+        MappedLight mapped = mappedLights.get(mappedCount++);
 
-                            if (tempShadows[(inverted ? b : a) + 1] > tempShadows[(inverted ? a : b) + 1]) {
-                                continue;
-                            }
-                        }
+        mapped.light = light;
+        mapped.row = row;
+        mapped.coverage = lightCoverage(light);
+        mapped.resolution = resolution;
+    }
 
-                        if (data.shadowsLength + 8 > data.buffsize) {
-                            data.setBuffsize(data.buffsize + 256, this);
-                        }
+    // Сколько пикселей окна приходится на единицу мира. Считается для ортогональной проекции,
+    // как у всех, кто рисует тени, по большему из масштабов по x и y
+    private float pixelsPerUnit() {
+        float[] m = modelviewMatrix;
+        float[] p = projectionMatrix;
 
-                        data.shadows[data.shadowsLength] = tempShadows[a];
-                        data.shadows[data.shadowsLength + 1] = tempShadows[a + 1];
+        float scaleX = p[0] * m[0] + p[4] * m[1] + p[8] * m[2] + p[12] * m[3];
+        float scaleY = p[1] * m[4] + p[5] * m[5] + p[9] * m[6] + p[13] * m[7];
 
-                        data.shadows[data.shadowsLength + 2] = tempShadows[b];
-                        data.shadows[data.shadowsLength + 3] = tempShadows[b + 1];
+        return Math.max(Math.abs(scaleX) * viewport[2], Math.abs(scaleY) * viewport[3]) / 2.0f;
+    }
 
-                        data.shadows[data.shadowsLength + 4] = clvtx[b];
-                        data.shadows[data.shadowsLength + 5] = clvtx[b + 1];
+    // Источники, чьи карты не поместились в бюджет, рисуются через трафарет как обычно
+    private void selectLightMaps() {
+        lightMapEntries.clear();
 
-                        data.shadows[data.shadowsLength + 6] = clvtx[a];
-                        data.shadows[data.shadowsLength + 7] = clvtx[a + 1];
+        List<MappedLight> candidates = mappedLights.subList(0, mappedCount);
+        candidates.sort(byCoverage);
 
-                        data.shadowsLength += 8;
-                    }
-                }
+        // Уже выданные в этом кадре карты не вытесняются: у них покрытие не меньше
+        for (MappedLight mapped: candidates) {
+            mapped.entry = lightMaps.acquire(mapped.light, frame, mapped.coverage, mapped.resolution);
+
+            if (mapped.entry == null)
+                addEnabledLight(mapped.light, mapped.row);
+        }
+
+        stencilLightCount = enabledLights.size();
+
+        for (MappedLight mapped: candidates) {
+            if (mapped.entry != null) {
+                addEnabledLight(mapped.light, mapped.row);
+                lightMapEntries.add(mapped.entry);
             }
         }
     }
 
-    public void draw() {
+    // Оставляет тени только самым заметным источникам: они переставляются в начало,
+    // а рисуемые через трафарет без теней идут после shadowedLightCount
+    private void applyShadowBudget() {
+        shadowedLightCount = stencilLightCount;
+
+        if (stencilLightCount <= shadowedLightBudget)
+            return;
+
+        while (rankedLights.size() < stencilLightCount) {
+            rankedLights.add(new RankedLight());
+        }
+
+        List<RankedLight> ranked = rankedLights.subList(0, stencilLightCount);
+
+        for (int i = 0; i < stencilLightCount; i++) {
+            RankedLight rankedLight = ranked.get(i);
+
+            rankedLight.light = enabledLights.get(i);
+            rankedLight.row = enabledRows[i];
+            rankedLight.importance = lightImportance(rankedLight.light);
+        }
+
+        ranked.sort(byImportance);
+
+        for (int i = 0; i < stencilLightCount; i++) {
+            RankedLight rankedLight = ranked.get(i);
+
+            enabledLights.set(i, rankedLight.light);
+            enabledRows[i] = rankedLight.row;
+        }
+
+        shadowedLightCount = shadowedLightBudget;
+    }
+
+    // Яркость источника на его площадь в видимой области, меньше для источников у края области
+    private float lightImportance(ILight light) {
+        Color color = light.color();
+
+        float intensity = Math.max(color.r, Math.max(color.g, color.b)) * color.a;
+        float importance = intensity * lightCoverage(light);
+
+        if (!geometry.viewEnabled())
+            return importance;
+
+        float viewWidth = geometry.viewMaxX() - geometry.viewMinX();
+        float viewHeight = geometry.viewMaxY() - geometry.viewMinY();
+        float halfDiagonal = (float) Math.sqrt(viewWidth * viewWidth + viewHeight * viewHeight) / 2.0f;
+
+        float xDelta = light.x() - (geometry.viewMinX() + geometry.viewMaxX()) / 2.0f;
+        float yDelta = light.y() - (geometry.viewMinY() + geometry.viewMaxY()) / 2.0f;
+        float distance = (float) Math.sqrt(xDelta * xDelta + yDelta * yDelta);
+
+        return importance / (1.0f + distance / halfDiagonal);
+    }
+
+    // Площадь рисуемого квадрата geometry.lightExtent() вокруг источника в видимой области,
+    // а без неё - площадь всего квадрата
+    private float lightCoverage(ILight light) {
+        float extent = geometry.lightExtent(light);
+
+        if (!geometry.viewEnabled())
+            return 4.0f * extent * extent;
+
+        float width = Math.min(light.x() + extent, geometry.viewMaxX()) - Math.max(light.x() - extent, geometry.viewMinX());
+        float height = Math.min(light.y() + extent, geometry.viewMaxY()) - Math.max(light.y() - extent, geometry.viewMinY());
+
+        return Math.max(width, 0.0f) * Math.max(height, 0.0f);
+    }
+
+    private void drawStencil() {
+        ShaderProgram lightProgram = shadersEnabled ? program : null;
+        ShadowMetrics metrics = geometry.metrics();
+
+        long time = metrics.time();
+
+        uploadLights();
+        time = metrics.lap(ShadowMetrics.Metric.LIGHT_PASS_NANOS, time);
+
         glEnable(GL_STENCIL_TEST);
-        glBlendFunc(GL_ONE, GL_ONE);
 
         glBindBuffer(GL_ARRAY_BUFFER, vbo);
-        glVertexPointer(2, GL_FLOAT, 0, 0);
-        glEnableClientState(GL_VERTEX_ARRAY);
+        uploadShadows();
+
+        // Программа остаётся привязанной и на проходе теней: с GL_NEVER фрагменты
+        // отбрасываются тестом трафарета и в цвет ничего не пишется
+        if (shadersEnabled) {
+            glUseProgram(program.id());
+        } else {
+            glEnable(GL_TEXTURE_2D);
+            glBindTexture(GL_TEXTURE_2D, lightGradientTexture);
+        }
 
-        List<ILight> enabledLights = new ArrayList<>();
+        glEnableClientState(GL_VERTEX_ARRAY);
 
-        for (ILight light: lights) {
-            if (lightData.get(light).enabled) {
-                enabledLights.add(light);
-            }
+        if (!lightMapEntries.isEmpty()) {
+            renderLightMaps(lightProgram);
+            time = metrics.lap(ShadowMetrics.Metric.SHADOW_PASS_NANOS, time);
         }
 
-        int first = 0;
+        glEnable(GL_SCISSOR_TEST);
+
+        for (int j = 0; j < shadowedLightCount; j += 8) {
+            // Квадраты группы целиком за пределами окна
+            if (!scissorGroup(j, Math.min(j + 8, shadowedLightCount)))
+                continue;
 
-        for (int j = 0; j < enabledLights.size(); j += 8) {
             glClear(GL_STENCIL_BUFFER_BIT);
 
             // Рисуем тени в буфер трафарета
 
+            glBindBuffer(GL_ARRAY_BUFFER, vbo);
+            glVertexPointer(2, GL_FLOAT, 0, 0);
+
             glStencilOp(GL_REPLACE, GL_KEEP, GL_KEEP);
             glStencilFunc(GL_NEVER, 0xFF, 0xFF);
 
-            for (int i = j; i < enabledLights.size() && i - j < 8; i++) {
-                LightData data = lightData.get(enabledLights.get(i));
+            for (int i = j; i < shadowedLightCount && i - j < 8; i++) {
+                ILight light = enabledLights.get(i);
 
                 glStencilMask(1 << (i - j));
 
-                glBufferSubData(GL_ARRAY_BUFFER, (long) first * 2 * Float.BYTES, data.shadows);
-                glDrawArrays(GL_QUADS, first, data.shadowsLength / 2);
+                glDrawArrays(GL_QUADS, geometry.shadowsOffset(light) / 2, geometry.shadowsLength(light) / 2);
+            }
+
+            time = metrics.lap(ShadowMetrics.Metric.SHADOW_PASS_NANOS, time);
 
-                first += data.buffsize;
+            // Рисуем свет
+
+            bindLightArrays(lightProgram);
+
+            glStencilOp(GL_KEEP, GL_KEEP, GL_KEEP);
+            glStencilMask(0xFF);
+
+            for (int i = j; i < shadowedLightCount && i - j < 8; i++) {
+                glStencilFunc(GL_EQUAL, 0, 1 << (i - j));
+                glDrawArrays(GL_QUADS, i * 4, 4);
             }
 
-            if (shadersEnabled) {
-                glUseProgram(program.id());
-            } else {
-                glEnable(GL_TEXTURE_2D);
-                glBindTexture(GL_TEXTURE_2D, lightGradientTexture);
+            unbindLightArrays(lightProgram);
+
+            time = metrics.lap(ShadowMetrics.Metric.LIGHT_PASS_NANOS, time);
+        }
+
+        glDisable(GL_SCISSOR_TEST);
+
+        // Источники сверх бюджета светят без теней, все одним вызовом
+        if (shadowedLightCount < stencilLightCount) {
+            glDisable(GL_STENCIL_TEST);
+
+            bindLightArrays(lightProgram);
+            glDrawArrays(GL_QUADS, shadowedLightCount * 4, (stencilLightCount - shadowedLightCount) * 4);
+            unbindLightArrays(lightProgram);
+
+            time = metrics.lap(ShadowMetrics.Metric.LIGHT_PASS_NANOS, time);
+        }
+
+        glDisableClientState(GL_VERTEX_ARRAY);
+
+        if (shadersEnabled) {
+            glUseProgram(0);
+        } else {
+            glDisable(GL_TEXTURE_2D);
+        }
+
+        glDisable(GL_STENCIL_TEST);
+
+        if (!lightMapEntries.isEmpty()) {
+            drawLightMaps();
+            metrics.lap(ShadowMetrics.Metric.LIGHT_PASS_NANOS, time);
+        }
+    }
+
+    // Перерисовывает устаревшие карты света: тени одного источника в трафарет и его свет в текстуру карты.
+    // Вызывается из drawStencil(), когда программа и массив вершин уже включены
+    private void renderLightMaps(ShaderProgram lightProgram) {
+        boolean saved = false;
+
+        for (int k = 0; k < lightMapEntries.size(); k++) {
+            int i = stencilLightCount + k;
+
+            ILight light = enabledLights.get(i);
+            LightMapCache.Entry entry = lightMapEntries.get(k);
+            long shadowsVersion = geometry.shadowsVersion(light);
+            float extent = geometry.lightExtent(light);
+
+            if (entry.valid(shadowsVersion, light.color(), extent))
+                continue;
+
+            if (!saved) {
+                // Рисовать могут не в окно, а в чужой кадровый буфер, его и нужно вернуть
+                savedFramebuffer = Framebuffer.current();
+                glGetIntegerv(GL_VIEWPORT, savedViewport);
+                glGetFloatv(GL_COLOR_CLEAR_VALUE, savedClearColor);
+                glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+                saved = true;
             }
 
+            Framebuffer framebuffer = lightMaps.framebuffer(entry.resolution());
+            framebuffer.attachTexture(entry.texture());
+            framebuffer.bind();
+
+            // Новый кадровый буфер создаёт свою текстуру и сбрасывает привязку градиента
+            if (lightProgram == null)
+                glBindTexture(GL_TEXTURE_2D, lightGradientTexture);
+
+            // Рисуем в мировых координатах квадрата карты
+            glMatrixMode(GL_PROJECTION);
+            glPushMatrix();
+            glLoadIdentity();
+            glOrtho(light.x() - extent, light.x() + extent, light.y() - extent, light.y() + extent, -1, 1);
+            glMatrixMode(GL_MODELVIEW);
+            glPushMatrix();
+            glLoadIdentity();
+
+            glStencilMask(0xFF);
+            glClear(GL_COLOR_BUFFER_BIT | GL_STENCIL_BUFFER_BIT);
+
+            glBindBuffer(GL_ARRAY_BUFFER, vbo);
+            glVertexPointer(2, GL_FLOAT, 0, 0);
+
+            glStencilOp(GL_REPLACE, GL_KEEP, GL_KEEP);
+            glStencilFunc(GL_NEVER, 0xFF, 0xFF);
+            glStencilMask(1);
+
+            glDrawArrays(GL_QUADS, geometry.shadowsOffset(light) / 2, geometry.shadowsLength(light) / 2);
+
+            bindLightArrays(lightProgram);
+
             glStencilOp(GL_KEEP, GL_KEEP, GL_KEEP);
             glStencilMask(0xFF);
+            glStencilFunc(GL_EQUAL, 0, 1);
 
-            for (int i = j; i < enabledLights.size() && i - j < 8; i++) {
-                ILight light = enabledLights.get(i);
+            glDrawArrays(GL_QUADS, i * 4, 4);
 
-                float srcX = light.x();
-                float srcY = light.y();
-                float srcSize = light.maxDistance() * lightOversize;
+            unbindLightArrays(lightProgram);
 
-                glStencilFunc(GL_EQUAL, 0, 1 << (i - j));
+            glPopMatrix();
+            glMatrixMode(GL_PROJECTION);
+            glPopMatrix();
+            glMatrixMode(GL_MODELVIEW);
 
-                if (shadersEnabled) {
-                    glUniform2f(glGetUniformLocation(program.id(), "pos"), srcX, srcY);
-                }
+            entry.validate(shadowsVersion, light.color(), extent);
+        }
+
+        if (saved) {
+            Framebuffer.rebind(savedFramebuffer);
+            glViewport(savedViewport[0], savedViewport[1], savedViewport[2], savedViewport[3]);
+            glClearColor(savedClearColor[0], savedClearColor[1], savedClearColor[2], savedClearColor[3]);
+        }
+    }
 
-                // Рисуем свет
-                Color color = light.color();
-                glColor3f(color.r * color.a, color.g * color.a, color.b * color.a);
+    // Готовые карты накладываются одним текстурированным квадратом на источник, без трафарета
+    private void drawLightMaps() {
+        int needed = lightMapEntries.size() * 4 * 4;
 
-                float halfOversize = (lightOversize - 1.0f) / 2.0f;
+        if (lightMapQuads.capacity() < needed)
+            lightMapQuads = BufferUtils.createFloatBuffer(Math.max(needed, lightMapQuads.capacity() * 2));
 
-                glBegin(GL_QUADS);
+        lightMapQuads.clear();
 
-                glVertex2d(srcX + srcSize, srcY - srcSize);
-                glTexCoord2f(halfOversize + 1.0f, -halfOversize);
+        for (int k = 0; k < lightMapEntries.size(); k++) {
+            ILight light = enabledLights.get(stencilLightCount + k);
 
-                glVertex2d(srcX + srcSize, srcY + srcSize);
-                glTexCoord2f(halfOversize + 1.0f, halfOversize + 1.0f);
+            float srcX = light.x();
+            float srcY = light.y();
+            float extent = geometry.lightExtent(light);
+
+            lightMapQuads.put(srcX + extent).put(srcY - extent).put(1.0f).put(0.0f);
+            lightMapQuads.put(srcX + extent).put(srcY + extent).put(1.0f).put(1.0f);
+            lightMapQuads.put(srcX - extent).put(srcY + extent).put(0.0f).put(1.0f);
+            lightMapQuads.put(srcX - extent).put(srcY - extent).put(0.0f).put(0.0f);
+        }
 
-                glVertex2d(srcX - srcSize, srcY + srcSize);
-                glTexCoord2f(-halfOversize, halfOversize + 1.0f);
+        lightMapQuads.flip();
 
-                glVertex2d(srcX - srcSize , srcY - srcSize);
-                glTexCoord2f(-halfOversize, -halfOversize);
+        glBindBuffer(GL_ARRAY_BUFFER, lightMapVbo);
+        glBufferData(GL_ARRAY_BUFFER, lightMapQuads, GL_STREAM_DRAW);
 
-                glEnd();
+        glVertexPointer(2, GL_FLOAT, 4 * Float.BYTES, 0);
+        glTexCoordPointer(2, GL_FLOAT, 4 * Float.BYTES, 2 * Float.BYTES);
+        glEnableClientState(GL_VERTEX_ARRAY);
+        glEnableClientState(GL_TEXTURE_COORD_ARRAY);
+
+        glEnable(GL_TEXTURE_2D);
+        glColor4f(1.0f, 1.0f, 1.0f, 1.0f);
+
+        for (int k = 0; k < lightMapEntries.size(); k++) {
+            glBindTexture(GL_TEXTURE_2D, lightMapEntries.get(k).texture());
+            glDrawArrays(GL_QUADS, k * 4, 4);
+        }
+
+        glDisable(GL_TEXTURE_2D);
+
+        glDisableClientState(GL_TEXTURE_COORD_ARRAY);
+        glDisableClientState(GL_VERTEX_ARRAY);
+    }
+
+    // Тени берутся из атласа прямо в шейдере, трафарет не нужен
+    private void drawShadowMapped() {
+        glUseProgram(shadowMapProgram.id());
+        glBindTexture(GL_TEXTURE_2D, shadowAtlas);
+
+        glEnableClientState(GL_VERTEX_ARRAY);
+        bindLightArrays(shadowMapProgram);
+
+        glDrawArrays(GL_QUADS, 0, enabledLights.size() * 4);
+
+        unbindLightArrays(shadowMapProgram);
+        glDisableClientState(GL_VERTEX_ARRAY);
+
+        glUseProgram(0);
+    }
+
+    // Атлас загружается целиком, только если какая-то полярная карта поменялась
+    private void uploadShadowAtlas() {
+        List<ILight> lights = geometry.lights();
+
+        int height = Integer.highestOneBit(Math.max(lights.size(), 1) * 2 - 1);
+        boolean resized = height != shadowAtlasHeight;
+
+        if (!resized && !geometry.polarChanged())
+            return;
+
+        int size = POLAR_RESOLUTION * height * 4;
+
+        if (shadowAtlasPixels.capacity() < size)
+            shadowAtlasPixels = BufferUtils.createByteBuffer(size);
+
+        float lightOversize = geometry.lightOversize();
+
+        for (int l = 0; l < lights.size(); l++) {
+            ILight light = lights.get(l);
+
+            geometry.polarDepth(light, polarDepth);
+
+            float range = shadowMapRange(light, lightOversize);
+            int index = l * POLAR_RESOLUTION * 4;
+
+            for (int k = 0; k < POLAR_RESOLUTION; k++) {
+                int depth = polarDepth[k] < range ? (int) (polarDepth[k] / range * 0xFFFF) : 0xFFFF;
+
+                shadowAtlasPixels.put(index, (byte) (depth >>> 8));
+                shadowAtlasPixels.put(index + 1, (byte) depth);
+                shadowAtlasPixels.put(index + 2, (byte) 0);
+                shadowAtlasPixels.put(index + 3, (byte) 0xFF);
+
+                index += 4;
             }
+        }
+
+        shadowAtlasPixels.position(0).limit(size);
+
+        glBindTexture(GL_TEXTURE_2D, shadowAtlas);
+
+        if (resized) {
+            glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, POLAR_RESOLUTION, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, shadowAtlasPixels);
+            shadowAtlasHeight = height;
+
+            if (geometry.metrics().enabled())
+                geometry.metrics().add(ShadowMetrics.Metric.VBO_REALLOCATIONS, 1);
+        } else {
+            glTexSubImage2D(GL_TEXTURE_2D, 0, 0, 0, POLAR_RESOLUTION, height, GL_RGBA, GL_UNSIGNED_BYTE, shadowAtlasPixels);
+        }
+
+        shadowAtlasPixels.clear();
+
+        if (geometry.metrics().enabled())
+            geometry.metrics().add(ShadowMetrics.Metric.BYTES_UPLOADED, size);
+
+        geometry.markPolarUploaded();
+    }
+
+    // Расстояние до угла квадрата света, дальше свет не рисуется
+    private static float shadowMapRange(ILight light, float lightOversize) {
+        return light.maxDistance() * lightOversize * (float) Math.sqrt(2.0);
+    }
+
+    // Квадраты всех включённых источников собираются в lightVbo одним вызовом за кадр
+    private void uploadLights() {
+        int needed = enabledLights.size() * 4 * LIGHT_VERTEX_SIZE;
+
+        if (lightVertices.capacity() < needed) {
+            lightVertices = BufferUtils.createFloatBuffer(Math.max(needed, lightVertices.capacity() * 2));
+
+            if (geometry.metrics().enabled())
+                geometry.metrics().add(ShadowMetrics.Metric.VBO_REALLOCATIONS, 1);
+        }
 
-            if (shadersEnabled) {
-                glUseProgram(0);
-            } else {
-                glDisable(GL_TEXTURE_2D);
+        lightVertices.clear();
+
+        float lightOversize = geometry.lightOversize();
+
+        for (int i = 0; i < enabledLights.size(); i++) {
+            ILight light = enabledLights.get(i);
+
+            float srcX = light.x();
+            float srcY = light.y();
+            float srcSize = geometry.lightExtent(light);
+
+            // Текстура градиента занимает квадрат maxDistance() с центром в 0.5
+            float texSize = srcSize / (2.0f * light.maxDistance());
+
+            Color color = light.color();
+            float r = color.r * color.a;
+            float g = color.g * color.a;
+            float b = color.b * color.a;
+
+            float row = shadowAtlasHeight > 0 ? (enabledRows[i] + 0.5f) / shadowAtlasHeight : 0.0f;
+            float range = shadowMapRange(light, lightOversize);
+
+            putLightVertex(srcX + srcSize, srcY - srcSize, 0.5f + texSize, 0.5f - texSize, r, g, b, srcX, srcY, row, range);
+            putLightVertex(srcX + srcSize, srcY + srcSize, 0.5f + texSize, 0.5f + texSize, r, g, b, srcX, srcY, row, range);
+            putLightVertex(srcX - srcSize, srcY + srcSize, 0.5f - texSize, 0.5f + texSize, r, g, b, srcX, srcY, row, range);
+            putLightVertex(srcX - srcSize, srcY - srcSize, 0.5f - texSize, 0.5f - texSize, r, g, b, srcX, srcY, row, range);
+        }
+
+        lightVertices.flip();
+
+        glBindBuffer(GL_ARRAY_BUFFER, lightVbo);
+        glBufferData(GL_ARRAY_BUFFER, lightVertices, GL_STREAM_DRAW);
+
+        if (geometry.metrics().enabled())
+            geometry.metrics().add(ShadowMetrics.Metric.BYTES_UPLOADED, (long) lightVertices.limit() * Float.BYTES);
+    }
+
+    // Радиус, где light.frag (color * 32 / d^0.8) опускается до lightThreshold. Градиент без шейдеров
+    // чернеет на maxDistance(). Больше квадрата lightOversize всё равно не рисуется, это ограничит geometry
+    private float lightRadius(ILight light) {
+        if (!shadersEnabled)
+            return light.maxDistance();
+
+        Color color = light.color();
+        float intensity = Math.max(color.r, Math.max(color.g, color.b)) * color.a;
+
+        return (float) Math.pow(32.0f * intensity / lightThreshold, 1.25);
+    }
+
+    // Ставит glScissor на прямоугольник окна, в который попадают квадраты источников [from, to).
+    // Углы переводятся текущими матрицами, false - если прямоугольник пустой
+    private boolean scissorGroup(int from, int to) {
+        float minX = Float.POSITIVE_INFINITY;
+        float minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY;
+        float maxY = Float.NEGATIVE_INFINITY;
+
+        for (int i = from; i < to; i++) {
+            ILight light = enabledLights.get(i);
+            float extent = geometry.lightExtent(light);
+
+            minX = Math.min(minX, light.x() - extent);
+            minY = Math.min(minY, light.y() - extent);
+            maxX = Math.max(maxX, light.x() + extent);
+            maxY = Math.max(maxY, light.y() + extent);
+        }
+
+        float[] corners = scissorCorners;
+
+        corners[0] = minX;
+        corners[1] = minY;
+        corners[2] = maxX;
+        corners[3] = minY;
+        corners[4] = maxX;
+        corners[5] = maxY;
+        corners[6] = minX;
+        corners[7] = maxY;
+
+        float windowMinX = Float.POSITIVE_INFINITY;
+        float windowMinY = Float.POSITIVE_INFINITY;
+        float windowMaxX = Float.NEGATIVE_INFINITY;
+        float windowMaxY = Float.NEGATIVE_INFINITY;
+
+        float[] m = modelviewMatrix;
+        float[] p = projectionMatrix;
+
+        for (int i = 0; i < 8; i += 2) {
+            float x = corners[i];
+            float y = corners[i + 1];
+
+            // Матрицы по столбцам, z = 0, w = 1
+            float eyeX = m[0] * x + m[4] * y + m[12];
+            float eyeY = m[1] * x + m[5] * y + m[13];
+            float eyeZ = m[2] * x + m[6] * y + m[14];
+            float eyeW = m[3] * x + m[7] * y + m[15];
+
+            float clipX = p[0] * eyeX + p[4] * eyeY + p[8] * eyeZ + p[12] * eyeW;
+            float clipY = p[1] * eyeX + p[5] * eyeY + p[9] * eyeZ + p[13] * eyeW;
+            float clipW = p[3] * eyeX + p[7] * eyeY + p[11] * eyeZ + p[15] * eyeW;
+
+            // Угол за камерой, с перспективой прямоугольник не посчитать, чистим весь экран
+            if (clipW <= 0.0f) {
+                glScissor(viewport[0], viewport[1], viewport[2], viewport[3]);
+                return true;
             }
+
+            float windowX = viewport[0] + (clipX / clipW + 1.0f) * 0.5f * viewport[2];
+            float windowY = viewport[1] + (clipY / clipW + 1.0f) * 0.5f * viewport[3];
+
+            windowMinX = Math.min(windowMinX, windowX);
+            windowMinY = Math.min(windowMinY, windowY);
+            windowMaxX = Math.max(windowMaxX, windowX);
+            windowMaxY = Math.max(windowMaxY, windowY);
         }
 
-        glDisable(GL_STENCIL_TEST);
-        glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+        int left = Math.max((int) Math.floor(windowMinX), viewport[0]);
+        int bottom = Math.max((int) Math.floor(windowMinY), viewport[1]);
+        int right = Math.min((int) Math.ceil(windowMaxX), viewport[0] + viewport[2]);
+        int top = Math.min((int) Math.ceil(windowMaxY), viewport[1] + viewport[3]);
+
+        if (left >= right || bottom >= top)
+            return false;
+
+        glScissor(left, bottom, right - left, top - bottom);
+        return true;
+    }
+
+    private void putLightVertex(float x, float y, float s, float t, float r, float g, float b,
+                                float lightX, float lightY, float row, float range) {
+        lightVertices.put(x).put(y).put(s).put(t).put(r).put(g).put(b)
+                .put(lightX).put(lightY).put(row).put(range);
+    }
+
+    // lightProgram == null, когда свет рисуется без шейдеров
+    private void bindLightArrays(ShaderProgram lightProgram) {
+        glBindBuffer(GL_ARRAY_BUFFER, lightVbo);
+        glVertexPointer(2, GL_FLOAT, LIGHT_VERTEX_STRIDE, 0);
+        glTexCoordPointer(2, GL_FLOAT, LIGHT_VERTEX_STRIDE, 2 * Float.BYTES);
+        glColorPointer(3, GL_FLOAT, LIGHT_VERTEX_STRIDE, 4 * Float.BYTES);
+        glEnableClientState(GL_TEXTURE_COORD_ARRAY);
+        glEnableClientState(GL_COLOR_ARRAY);
+
+        if (lightProgram != null) {
+            enableLightAttribute(lightProgram.attributeLocation("lightPos"), 7);
+            enableLightAttribute(lightProgram.attributeLocation("shadowRow"), 9);
+        }
+    }
+
+    private static void enableLightAttribute(int location, int offset) {
+        if (location < 0)
+            return;
+
+        glVertexAttribPointer(location, 2, GL_FLOAT, false, LIGHT_VERTEX_STRIDE, (long) offset * Float.BYTES);
+        glEnableVertexAttribArray(location);
+    }
+
+    // Тени читают только координаты, остальные массивы lightVbo на их проходе выключены
+    private void unbindLightArrays(ShaderProgram lightProgram) {
+        glDisableClientState(GL_TEXTURE_COORD_ARRAY);
+        glDisableClientState(GL_COLOR_ARRAY);
+
+        if (lightProgram != null) {
+            disableLightAttribute(lightProgram.attributeLocation("lightPos"));
+            disableLightAttribute(lightProgram.attributeLocation("shadowRow"));
+        }
+    }
+
+    private static void disableLightAttribute(int location) {
+        if (location >= 0)
+            glDisableVertexAttribArray(location);
+    }
+
+    public ShadowGeometry geometry() {
+        return geometry;
     }
 
     public void addClient(IShadowClient shadowClient) {
-        shadowClients.add(shadowClient);
+        geometry.addClient(shadowClient);
+    }
+
+    public void addStaticClient(IShadowClient shadowClient) {
+        geometry.addStaticClient(shadowClient);
+    }
+
+    public void refreshStaticClient(IShadowClient shadowClient) {
+        geometry.refreshStaticClient(shadowClient);
     }
 
     public void removeClient(IShadowClient shadowClient) {
-        shadowClients.remove(shadowClient);
+        geometry.removeClient(shadowClient);
     }
 
     public void addLight(ILight light) {
-        lights.add(light);
-
-        lightData.put(light, new LightData());
+        if (lightClusters != null)
+            lightClusters.add(light, false);
+        else
+            geometry.addLight(light);
+    }
 
-        updateVboSize();
+    public void addStaticLight(ILight light) {
+        if (lightClusters != null)
+            lightClusters.add(light, true);
+        else
+            geometry.addStaticLight(light);
     }
 
     public void removeLight(ILight light) {
-        lights.remove(light);
+        if (lightClusters != null) {
+            lightClusters.remove(light);
+            return;
+        }
+
+        geometry.removeLight(light);
+        releaseLightMap(light);
+    }
+
+    private void releaseLightMap(ILight light) {
+        if (glInitialized)
+            lightMaps.remove(light);
+    }
+
+    public float lightClusterTolerance() {
+        return lightClusterTolerance;
+    }
 
-        lightData.remove(light);
+    // Собирает источники, которые стоят ближе tolerance друг к другу и с такими же maxDistance(),
+    // в кластеры, и geometry() видит только кластеры. 0 выключает кластеризацию.
+    // Кластеры перестраиваются в следующем update() по положениям на тот момент,
+    // поэтому результат не зависит от того, двигали ли источники до или после вызова
+    public void setLightClusterTolerance(float tolerance) {
+        lightClusterTolerance = Math.max(tolerance, 0.0f);
     }
 
-    private static float triangleArea(float[] triangle) {
-        float x1 = triangle[0];
-        float y1 = triangle[1];
-        float x2 = triangle[2];
-        float y2 = triangle[3];
-        float x3 = triangle[4];
-        float y3 = triangle[5];
+    private void rebuildLightClusters() {
+        float tolerance = lightClusterTolerance;
+
+        List<ILight> lights = new ArrayList<>();
+        List<Boolean> staticLights = new ArrayList<>();
+
+        if (lightClusters != null) {
+            for (ILight light: lightClusters.lights()) {
+                lights.add(light);
+                staticLights.add(lightClusters.lightStatic(light));
+            }
+
+            lightClusters.clear();
+            lightClusters = null;
+        } else {
+            for (ILight light: new ArrayList<>(geometry.lights())) {
+                lights.add(light);
+                staticLights.add(geometry.lightStatic(light));
 
-        return Math.abs((x1 * (y2 - y3) + x2 * (y3 - y1) + x3 * (y1 - y2)) / 2.0f);
+                geometry.removeLight(light);
+                releaseLightMap(light);
+            }
+        }
+
+        if (tolerance > 0.0f)
+            lightClusters = new LightClusters(geometry, tolerance, this::releaseLightMap);
+
+        for (int l = 0; l < lights.size(); l++) {
+            if (staticLights.get(l))
+                addStaticLight(lights.get(l));
+            else
+                addLight(lights.get(l));
+        }
     }
 
-    private static boolean checkIfPointInsideTriangle(float[] triangle, float x, float y) {
-        float x1 = triangle[0];
-        float y1 = triangle[1];
-        float x2 = triangle[2];
-        float y2 = triangle[3];
-        float x3 = triangle[4];
-        float y3 = triangle[5];
+    // Кластеры источников или null, если кластеризация выключена
+    public LightClusters lightClusters() {
+        return lightClusters;
+    }
 
-        float A = triangleArea(triangle);
+    public boolean spatialIndexEnabled() {
+        return geometry.spatialIndexEnabled();
+    }
 
-        float A1 = triangleArea(new float[] { x, y, x2, y2, x3, y3 });
-        float A2 = triangleArea(new float[] { x1, y1, x, y, x3, y3 });
-        float A3 = triangleArea(new float[] { x1, y1, x2, y2, x, y });
+    public void setSpatialIndexEnabled(boolean spatialIndexEnabled) {
+        geometry.setSpatialIndexEnabled(spatialIndexEnabled);
+    }
+
+    public ForkJoinPool shadowPool() {
+        return geometry.shadowPool();
+    }
+
+    public void setShadowPool(ForkJoinPool shadowPool) {
+        geometry.setShadowPool(shadowPool);
+    }
+
+    public ShadowMetrics metrics() {
+        return geometry.metrics();
+    }
 
-        return (Math.abs(A - (A1 + A2 + A3)) < 0.0125f);
+    // Видимая область в мировых координатах, по ней отсекаются источники и клиенты
+    public void setView(float x, float y, float width, float height) {
+        geometry.setView(x, y, x + width, y + height);
+    }
+
+    // Без видимой области отсекать нечего, рисуются все источники
+    public void clearView() {
+        geometry.clearView();
+    }
+
+    public boolean viewEnabled() {
+        return geometry.viewEnabled();
+    }
+
+    public float viewX() {
+        return geometry.viewMinX();
+    }
+
+    public float viewY() {
+        return geometry.viewMinY();
+    }
+
+    public float viewWidth() {
+        return geometry.viewMaxX() - geometry.viewMinX();
+    }
+
+    public float viewHeight() {
+        return geometry.viewMaxY() - geometry.viewMinY();
     }
 
     public boolean shadersEnabled() {
         return shadersEnabled;
     }
 
+    public ShadowMode shadowMode() {
+        return shadowMode;
+    }
+
+    // Полярные карты считаются в update(), только пока включён SHADOW_MAP
+    public void setShadowMode(ShadowMode shadowMode) {
+        this.shadowMode = shadowMode;
+
+        geometry.setPolarResolution(shadowMode == ShadowMode.SHADOW_MAP ? POLAR_RESOLUTION : 0);
+    }
+
     public void setShadersEnabled(boolean shadersEnabled) {
         this.shadersEnabled = shadersEnabled;
 
-        if (!shadersEnabled)
+        if (!shadersEnabled && glInitialized)
             glUseProgram(0);
+
+        // Карты нарисованы другим способом и немного отличаются
+        lightMaps.invalidate();
+    }
+
+    public float lightThreshold() {
+        return lightThreshold;
+    }
+
+    // 0 - квадрат света всегда lightOversize maxDistance(), как без ограничения по яркости
+    public void setLightThreshold(float lightThreshold) {
+        this.lightThreshold = lightThreshold;
+
+        geometry.setLightFalloff(lightThreshold > 0.0f ? this::lightRadius : null);
+    }
+
+    public boolean lightMapsEnabled() {
+        return lightMapsEnabled;
+    }
+
+    // Статические источники рисуются из карт света, если есть кадровые буферы
+    public void setLightMapsEnabled(boolean lightMapsEnabled) {
+        this.lightMapsEnabled = lightMapsEnabled;
+
+        if (!lightMapsEnabled && glInitialized)
+            lightMaps.clear();
+    }
+
+    public int shadowedLightBudget() {
+        return shadowedLightBudget;
+    }
+
+    // Integer.MAX_VALUE, чтобы тени были у всех источников
+    public void setShadowedLightBudget(int shadowedLightBudget) {
+        this.shadowedLightBudget = Math.max(shadowedLightBudget, 0);
+    }
+
+    public long lightMapBudget() {
+        return lightMaps.budget();
+    }
+
+    // Видеопамять под карты света в байтах, по 4 байта на тексель карты
+    public void setLightMapBudget(long bytes) {
+        lightMaps.setBudget(bytes);
     }
 }
@@ -47,4 +47,16 @@ public class SimpleLight implements ILight {
     public Color color() {
         return color;
     }
+
+    public void setX(float x) {
+        this.x = x;
+    }
+
+    public void setY(float y) {
+        this.y = y;
+    }
+
+    public void setMaxDistance(float maxDistance) {
+        this.maxDistance = maxDistance;
+    }
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2020, Мира Странная <rsxrwscjpzdzwpxaujrr@yahoo.com>
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Равномерная сетка для поиска объектов по прямоугольной области.
+// Объект попадает во все ячейки, которые пересекает его прямоугольник.
+public class SpatialGrid<T> {
+    private final float cellSize;
+    private final Map<T, Entry<T>> entries = new HashMap<>();
+
+    // Открытая адресация, чтобы поиск ячейки не создавал объектов
+    private long[] keys = new long[64];
+    private Cell<T>[] cells = newCells(64);
+    private int cellCount;
+
+    private int queryStamp;
+
+    private static class Entry<T> {
+        final T item;
+        int minX;
+        int minY;
+        int maxX;
+        int maxY;
+        int stamp;
+
+        private Entry(T item) {
+            this.item = item;
+        }
+    }
+
+    private static class Cell<T> {
+        final List<Entry<T>> entries = new ArrayList<>();
+    }
+
+    public SpatialGrid(float cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    public void insert(T item, float minX, float minY, float maxX, float maxY) {
+        if (entries.containsKey(item)) {
+            update(item, minX, minY, maxX, maxY);
+            return;
+        }
+
+        Entry<T> entry = new Entry<>(item);
+
+        entry.minX = cell(minX);
+        entry.minY = cell(minY);
+        entry.maxX = cell(maxX);
+        entry.maxY = cell(maxY);
+
+        entries.put(item, entry);
+        link(entry);
+    }
+
+    public void update(T item, float minX, float minY, float maxX, float maxY) {
+        Entry<T> entry = entries.get(item);
+
+        if (entry == null) {
+            insert(item, minX, minY, maxX, maxY);
+            return;
+        }
+
+        int newMinX = cell(minX);
+        int newMinY = cell(minY);
+        int newMaxX = cell(maxX);
+        int newMaxY = cell(maxY);
+
+        if (newMinX == entry.minX && newMinY == entry.minY && newMaxX == entry.maxX && newMaxY == entry.maxY)
+            return;
+
+        unlink(entry);
+
+        entry.minX = newMinX;
+        entry.minY = newMinY;
+        entry.maxX = newMaxX;
+        entry.maxY = newMaxY;
+
+        link(entry);
+    }
+
+    public void remove(T item) {
+        Entry<T> entry = entries.remove(item);
+
+        if (entry != null)
+            unlink(entry);
+    }
+
+    public boolean contains(T item) {
+        return entries.containsKey(item);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void clear() {
+        entries.clear();
+
+        Arrays.fill(keys, 0L);
+        Arrays.fill(cells, null);
+        cellCount = 0;
+    }
+
+    // Добавляет в result все объекты, ячейки которых пересекают прямоугольник, каждый по одному разу.
+    // Объекты из result нужно дополнительно проверить, сетка отсекает только заведомо далёкие.
+    public void query(float minX, float minY, float maxX, float maxY, List<T> result) {
+        int stamp = ++queryStamp;
+
+        int fromX = cell(minX);
+        int fromY = cell(minY);
+        int toX = cell(maxX);
+        int toY = cell(maxY);
+
+        for (int x = fromX; x <= toX; x++) {
+            for (int y = fromY; y <= toY; y++) {
+                Cell<T> cell = findCell(x, y);
+
+                if (cell == null)
+                    continue;
+
+                List<Entry<T>> cellEntries = cell.entries;
+
+                for (int i = 0; i < cellEntries.size(); i++) {
+                    Entry<T> entry = cellEntries.get(i);
+
+                    if (entry.stamp != stamp) {
+                        entry.stamp = stamp;
+                        result.add(entry.item);
+                    }
+                }
+            }
+        }
+    }
+
+    private int cell(float coord) {
+        return (int) Math.floor(coord / cellSize);
+    }
+
+    private void link(Entry<T> entry) {
+        for (int x = entry.minX; x <= entry.maxX; x++) {
+            for (int y = entry.minY; y <= entry.maxY; y++) {
+                getOrCreateCell(x, y).entries.add(entry);
+            }
+        }
+    }
+
+    private void unlink(Entry<T> entry) {
+        for (int x = entry.minX; x <= entry.maxX; x++) {
+            for (int y = entry.minY; y <= entry.maxY; y++) {
+                Cell<T> cell = findCell(x, y);
+
+                if (cell != null)
+                    cell.entries.remove(entry);
+            }
+        }
+    }
+
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    private int slot(long key, int length) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+
+        return (int) (hash >>> 40) & (length - 1);
+    }
+
+    private Cell<T> findCell(int x, int y) {
+        long key = key(x, y);
+        int mask = keys.length - 1;
+
+        for (int i = slot(key, keys.length); cells[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return cells[i];
+        }
+
+        return null;
+    }
+
+    // Пустые ячейки не удаляются, их количество ограничено площадью, которую когда-либо занимали объекты
+    private Cell<T> getOrCreateCell(int x, int y) {
+        Cell<T> cell = findCell(x, y);
+
+        if (cell != null)
+            return cell;
+
+        if ((cellCount + 1) * 2 > keys.length)
+            rehash(keys.length * 2);
+
+        cell = new Cell<>();
+        put(key(x, y), cell);
+        cellCount++;
+
+        return cell;
+    }
+
+    private void put(long key, Cell<T> cell) {
+        int mask = keys.length - 1;
+        int i = slot(key, keys.length);
+
+        while (cells[i] != null)
+            i = (i + 1) & mask;
+
+        keys[i] = key;
+        cells[i] = cell;
+    }
+
+    private void rehash(int length) {
+        long[] oldKeys = keys;
+        Cell<T>[] oldCells = cells;
+
+        keys = new long[length];
+        cells = newCells(length);
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldCells[i] != null)
+                put(oldKeys[i], oldCells[i]);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> Cell<T>[] newCells(int length) {
+        return (Cell<T>[]) new Cell[length];
+    }
+}
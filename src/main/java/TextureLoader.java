@@ -16,41 +16,66 @@
  */
 
 import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
 
-import javax.swing.*;
-import java.awt.*;
-import java.awt.color.ColorSpace;
-import java.awt.image.*;
 import java.io.IOException;
-import java.net.URL;
+import java.io.InputStream;
 import java.nio.*;
-import java.util.Hashtable;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.stb.STBImage.*;
 
+// Картинки декодируются через stb_image в пуле потоков, на GL-потоке остаётся только glTexImage2D.
+// Загруженные текстуры запоминаются по имени ресурса вместе с параметрами, с которыми их создали
 public class TextureLoader {
-    private ColorModel glAlphaColorModel;
-    private ColorModel glColorModel;
+    private static final ExecutorService decodePool = Executors.newFixedThreadPool(
+            Math.max(Runtime.getRuntime().availableProcessors() - 1, 1),
+            runnable -> {
+                Thread thread = new Thread(runnable, "texture-decode");
+                thread.setDaemon(true);
+                return thread;
+            }
+    );
+
+    // Сжатый файл читается в буфер потока, который растёт и не освобождается
+    private static final ThreadLocal<ByteBuffer> fileBuffer =
+            ThreadLocal.withInitial(() -> BufferUtils.createByteBuffer(64 * 1024));
+
+    private final Map<String, CompletableFuture<DecodedImage>> decoding = new HashMap<>();
+    private final Map<String, Integer> textures = new HashMap<>();
     private IntBuffer textureIDBuffer = BufferUtils.createIntBuffer(1);
 
-    public TextureLoader() {
-        glAlphaColorModel = new ComponentColorModel(
-                ColorSpace.getInstance(ColorSpace.CS_sRGB),
-                new int[] { 8, 8, 8, 8 },
-                true,
-                false,
-                ComponentColorModel.TRANSLUCENT,
-                DataBuffer.TYPE_BYTE
-        );
+    // Дополнение до степени двойки, если её требует контекст
+    private ByteBuffer paddedBuffer = BufferUtils.createByteBuffer(0);
 
-        glColorModel = new ComponentColorModel(
-                ColorSpace.getInstance(ColorSpace.CS_sRGB),
-                new int[] { 8, 8, 8, 0 },
-                false,
-                false,
-                ComponentColorModel.OPAQUE,
-                DataBuffer.TYPE_BYTE
-        );
+    private static class DecodedImage {
+        final int width;
+        final int height;
+        final int channels;
+
+        // Память stb_image, освобождается после загрузки в текстуру
+        final ByteBuffer pixels;
+
+        DecodedImage(int width, int height, int channels, ByteBuffer pixels) {
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+            this.pixels = pixels;
+        }
+    }
+
+    public TextureLoader() {
     }
 
     public int createTextureID() {
@@ -58,25 +83,44 @@ public class TextureLoader {
         return textureIDBuffer.get(0);
     }
 
+    // Начинает декодировать картинки заранее, можно звать до создания контекста и из любого потока
+    public synchronized void preload(String... resourceNames) {
+        for (String resourceName: resourceNames) {
+            decode(resourceName);
+        }
+    }
+
     public int getTexture(String resourceName,
                           int target,
                           int dstPixelFormat,
                           int minFilter,
                           int magFilter) throws IOException {
-        int srcPixelFormat;
+        // Та же картинка с другими параметрами - другая текстура
+        String key = resourceName + ":" + target + ":" + dstPixelFormat + ":" + minFilter + ":" + magFilter;
+        Integer cached = textures.get(key);
+
+        if (cached != null)
+            return cached;
+
+        DecodedImage image;
+
+        try {
+            image = decode(resourceName).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            throw e;
+        } finally {
+            synchronized (this) {
+                decoding.remove(resourceName);
+            }
+        }
+
         int textureID = createTextureID();
 
         glBindTexture(target, textureID);
 
-        BufferedImage bufferedImage = loadImage(resourceName);
-
-        if (bufferedImage.getColorModel().hasAlpha())
-            srcPixelFormat = GL_RGBA;
-        else
-            srcPixelFormat = GL_RGB;
-
-        ByteBuffer textureBuffer = convertImageData(bufferedImage);
-
         if (target == GL_TEXTURE_2D) {
             glTexParameteri(target, GL_TEXTURE_MIN_FILTER, minFilter);
             glTexParameteri(target, GL_TEXTURE_MAG_FILTER, magFilter);
@@ -85,19 +129,119 @@ public class TextureLoader {
             glTexParameteri(target, GL_TEXTURE_WRAP_T, GL_CLAMP);
         }
 
+        try {
+            upload(target, dstPixelFormat, image);
+        } finally {
+            stbi_image_free(image.pixels);
+        }
+
+        textures.put(key, textureID);
+
+        return textureID;
+    }
+
+    // Удаляет все загруженные текстуры, следующий getTexture() загрузит их заново.
+    // Память предзагруженных, но так и не запрошенных картинок освобождается, как только их декодирование закончится
+    public void clear() {
+        for (int textureID: textures.values()) {
+            glDeleteTextures(textureID);
+        }
+
+        textures.clear();
+
+        synchronized (this) {
+            for (CompletableFuture<DecodedImage> pending: decoding.values()) {
+                pending.thenAccept(image -> stbi_image_free(image.pixels));
+            }
+
+            decoding.clear();
+        }
+    }
+
+    private synchronized CompletableFuture<DecodedImage> decode(String resourceName) {
+        return decoding.computeIfAbsent(resourceName, name -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return decodeImage(name);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, decodePool));
+    }
+
+    private void upload(int target, int dstPixelFormat, DecodedImage image) {
+        int srcPixelFormat = pixelFormat(image.channels);
+
+        int width = image.width;
+        int height = image.height;
+        ByteBuffer pixels = image.pixels;
+
+        // Строки RGB не выровнены на 4 байта
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+
+        if (!nonPowerOfTwoSupported()) {
+            width = get2Fold(image.width);
+            height = get2Fold(image.height);
+
+            if (width != image.width || height != image.height)
+                pixels = pad(image, width, height);
+        }
+
         glTexImage2D(
                 target,
                 0,
                 dstPixelFormat,
-                get2Fold(bufferedImage.getWidth()),
-                get2Fold(bufferedImage.getHeight()),
+                width,
+                height,
                 0,
                 srcPixelFormat,
                 GL_UNSIGNED_BYTE,
-                textureBuffer
+                pixels
         );
 
-        return textureID;
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+    }
+
+    // Картинка в левом верхнем углу, остальное прозрачное, как раньше рисовал AWT
+    private ByteBuffer pad(DecodedImage image, int width, int height) {
+        int rowSize = image.width * image.channels;
+        int paddedRowSize = width * image.channels;
+        int size = paddedRowSize * height;
+
+        if (paddedBuffer.capacity() < size)
+            paddedBuffer = BufferUtils.createByteBuffer(size);
+
+        paddedBuffer.clear();
+        MemoryUtil.memSet(MemoryUtil.memAddress(paddedBuffer), 0, size);
+
+        long src = MemoryUtil.memAddress(image.pixels);
+        long dst = MemoryUtil.memAddress(paddedBuffer);
+
+        for (int y = 0; y < image.height; y++) {
+            MemoryUtil.memCopy(src + (long) y * rowSize, dst + (long) y * paddedRowSize, rowSize);
+        }
+
+        paddedBuffer.limit(size);
+
+        return paddedBuffer;
+    }
+
+    private static boolean nonPowerOfTwoSupported() {
+        GLCapabilities capabilities = GL.getCapabilities();
+
+        return capabilities.OpenGL20 || capabilities.GL_ARB_texture_non_power_of_two;
+    }
+
+    private static int pixelFormat(int channels) {
+        switch (channels) {
+            case 1:
+                return GL_LUMINANCE;
+            case 2:
+                return GL_LUMINANCE_ALPHA;
+            case 3:
+                return GL_RGB;
+            default:
+                return GL_RGBA;
+        }
     }
 
     private static int get2Fold(int fold) {
@@ -109,75 +253,47 @@ public class TextureLoader {
         return ret;
     }
 
-    private ByteBuffer convertImageData(BufferedImage bufferedImage) {
-        ByteBuffer imageBuffer;
-        WritableRaster raster;
-        BufferedImage texImage;
-
-        int texWidth = 2;
-        int texHeight = 2;
-
-        while (texWidth < bufferedImage.getWidth())
-            texWidth *= 2;
-
-        while (texHeight < bufferedImage.getHeight())
-            texHeight *= 2;
-
-        if (bufferedImage.getColorModel().hasAlpha()) {
-            raster = Raster.createInterleavedRaster(
-                    DataBuffer.TYPE_BYTE,
-                    texWidth,
-                    texHeight,
-                    4,
-                    null
-            );
-
-            texImage = new BufferedImage(glAlphaColorModel, raster, false, new Hashtable());
-        } else {
-            raster = Raster.createInterleavedRaster(
-                    DataBuffer.TYPE_BYTE,
-                    texWidth,
-                    texHeight,
-                    3,
-                    null
-            );
-
-            texImage = new BufferedImage(glColorModel, raster, false, new Hashtable());
-        }
+    // Вызывается в пуле, GL здесь трогать нельзя
+    private static DecodedImage decodeImage(String ref) throws IOException {
+        ByteBuffer file = readResource(ref);
 
-        Graphics g = texImage.getGraphics();
-        g.setColor(new java.awt.Color(0.0f, 0.0f, 0.0f, 0.0f));
-        g.fillRect(0, 0, texWidth, texHeight);
-        g.drawImage(bufferedImage, 0, 0, null);
+        try (MemoryStack stack = MemoryStack.stackPush()) {
+            IntBuffer width = stack.mallocInt(1);
+            IntBuffer height = stack.mallocInt(1);
+            IntBuffer channels = stack.mallocInt(1);
 
-        byte[] data = ((DataBufferByte) texImage.getRaster().getDataBuffer()).getData();
+            ByteBuffer pixels = stbi_load_from_memory(file, width, height, channels, 0);
 
-        imageBuffer = ByteBuffer.allocateDirect(data.length);
-        imageBuffer.order(ByteOrder.nativeOrder());
-        imageBuffer.put(data, 0, data.length);
-        imageBuffer.flip();
+            if (pixels == null)
+                throw new IOException("Can not decode " + ref + ": " + stbi_failure_reason());
 
-        return imageBuffer;
+            return new DecodedImage(width.get(0), height.get(0), channels.get(0), pixels);
+        }
     }
 
-    private BufferedImage loadImage(String ref) throws IOException {
-        URL url = this.getClass().getResource(ref);
-
-        if (url.getContent() == null)
-            throw new IOException();
-
-        Image img = new ImageIcon(url).getImage();
-
-        BufferedImage bufferedImage = new BufferedImage(
-                img.getWidth(null),
-                img.getHeight(null),
-                BufferedImage.TYPE_INT_ARGB
-        );
+    private static ByteBuffer readResource(String ref) throws IOException {
+        ByteBuffer buffer = fileBuffer.get();
+        buffer.clear();
+
+        try (InputStream stream = TextureLoader.class.getResourceAsStream(ref)) {
+            if (stream == null)
+                throw new IOException("Can not find " + ref);
+
+            ReadableByteChannel channel = Channels.newChannel(stream);
+
+            while (channel.read(buffer) != -1) {
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer grown = BufferUtils.createByteBuffer(buffer.capacity() * 2);
+                    buffer.flip();
+                    grown.put(buffer);
+                    buffer = grown;
+                    fileBuffer.set(buffer);
+                }
+            }
+        }
 
-        Graphics g = bufferedImage.getGraphics();
-        g.drawImage(img, 0, 0, null);
-        g.dispose();
+        buffer.flip();
 
-        return bufferedImage;
+        return buffer;
     }
-}
\ No newline at end of file
+}
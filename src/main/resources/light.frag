@@ -1,8 +1,7 @@
 #version 110
 
-uniform vec2 pos;
+varying vec2 delta;
 
 void main() {
-    vec2 a = pos - gl_FragCoord.xy;
-    gl_FragColor = gl_Color / (pow(dot(a, a), 0.4) / 32.0);
+    gl_FragColor = gl_Color / (pow(dot(delta, delta), 0.4) / 32.0);
 }
@@ -1,6 +1,11 @@
 #version 110
 
+attribute vec2 lightPos;
+
+varying vec2 delta;
+
 void main() {
+    delta = gl_Vertex.xy - lightPos;
     gl_FrontColor = gl_Color;
     gl_Position = gl_ModelViewProjectionMatrix * gl_Vertex;
 }
@@ -0,0 +1,13 @@
+#version 110
+
+uniform sampler2D shadowAtlas;
+
+varying vec2 delta;
+varying vec2 row;
+
+void main() {
+    vec4 texel = texture2D(shadowAtlas, vec2(atan(delta.y, delta.x) / 6.2831853 + 0.5, row.x));
+    float depth = (texel.r * 65280.0 + texel.g * 255.0) / 65535.0 * row.y;
+    float lit = step(length(delta), depth + 0.5);
+    gl_FragColor = lit * gl_Color / (pow(dot(delta, delta), 0.4) / 32.0);
+}
@@ -0,0 +1,14 @@
+#version 110
+
+attribute vec2 lightPos;
+attribute vec2 shadowRow;
+
+varying vec2 delta;
+varying vec2 row;
+
+void main() {
+    delta = gl_Vertex.xy - lightPos;
+    row = shadowRow;
+    gl_FrontColor = gl_Color;
+    gl_Position = gl_ModelViewProjectionMatrix * gl_Vertex;
+}